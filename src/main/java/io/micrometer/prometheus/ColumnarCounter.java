@@ -0,0 +1,56 @@
+/**
+ * Copyright 2017 VMware, Inc.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.micrometer.prometheus;
+
+import io.micrometer.core.instrument.AbstractMeter;
+import io.micrometer.core.instrument.Counter;
+
+/**
+ * {@link Counter} whose value lives in a slot of {@link CounterColumns}. Once removed from the registry it
+ * no longer counts and reports {@code 0}, since its slot may be reused by another counter.
+ */
+final class ColumnarCounter extends AbstractMeter implements Counter {
+    private final CounterColumns columns;
+    private final int slot;
+    private final int generation;
+
+    ColumnarCounter(Id id, CounterColumns columns, int slot) {
+        super(id);
+        this.columns = columns;
+        this.slot = slot;
+        this.generation = columns.generation(slot);
+    }
+
+    @Override
+    public void increment(double amount) {
+        if (amount > 0) {
+            columns.add(slot, generation, amount);
+        }
+    }
+
+    @Override
+    public double count() {
+        return columns.get(slot, generation);
+    }
+
+    int getSlot() {
+        return slot;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+}
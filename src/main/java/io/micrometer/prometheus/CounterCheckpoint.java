@@ -0,0 +1,126 @@
+/**
+ * Copyright 2017 VMware, Inc.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.micrometer.prometheus;
+
+import io.micrometer.core.instrument.Meter;
+import io.prometheus.client.Collector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps cumulative series monotonic across restarts. The values of counters, {@code _count}, {@code _sum} and
+ * cumulative buckets are periodically written to a {@link SampleSegment}. After a restart the values found in
+ * the segment are added to the series with the same name and labels once the meter is registered again.
+ * Restored series that no meter has claimed yet are carried forward into every new checkpoint, so they survive
+ * any number of restarts until their meter comes back.
+ */
+final class CounterCheckpoint implements Closeable {
+    private final Map<String, SampleSegment.Entry> restored;
+    private final SampleSegment.Writer writer;
+
+    private CounterCheckpoint(Map<String, SampleSegment.Entry> restored, SampleSegment.Writer writer) {
+        this.restored = restored;
+        this.writer = writer;
+    }
+
+    static CounterCheckpoint open(Path file) throws IOException {
+        Map<String, SampleSegment.Entry> restored = new LinkedHashMap<>();
+        for (SampleSegment.Entry entry : SampleSegment.read(file)) {
+            restored.put(key(entry.sampleName, entry.labelNames, entry.labelValues), entry);
+        }
+        return new CounterCheckpoint(restored, new SampleSegment.Writer(file));
+    }
+
+    static boolean isCumulative(Meter.Type meterType, Collector.Type type, String familyName, String sampleName) {
+        if (meterType == Meter.Type.LONG_TASK_TIMER) {
+            // the buckets of a long task timer count the tasks in flight right now
+            return false;
+        }
+        switch (type) {
+            case COUNTER:
+                return true;
+            case HISTOGRAM:
+            case SUMMARY:
+                return sampleName.equals(familyName + "_count") || sampleName.equals(familyName + "_sum") ||
+                        sampleName.equals(familyName + "_bucket");
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return The value the series had when the previous process last checkpointed it, {@code 0} if none.
+     */
+    double restoredValue(Collector.MetricFamilySamples.Sample sample) {
+        if (restored.isEmpty()) {
+            return 0;
+        }
+        SampleSegment.Entry entry = restored.get(key(sample.name, sample.labelNames, sample.labelValues));
+        return entry == null ? 0 : entry.value;
+    }
+
+    /**
+     * Writes the cumulative samples of the live meters, which already include their restored values, along
+     * with every restored series none of them claimed.
+     */
+    synchronized void write(List<Collector.MetricFamilySamples> families) throws IOException {
+        Set<String> claimed = new HashSet<>();
+        for (Collector.MetricFamilySamples family : families) {
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                claimed.add(key(sample.name, sample.labelNames, sample.labelValues));
+            }
+        }
+
+        Map<String, Collector.MetricFamilySamples> unclaimed = new LinkedHashMap<>();
+        restored.forEach((key, entry) -> {
+            if (!claimed.contains(key)) {
+                unclaimed.computeIfAbsent(entry.familyName,
+                        name -> new Collector.MetricFamilySamples(name, entry.type, " ", new ArrayList<>()))
+                        .samples.add(new Collector.MetricFamilySamples.Sample(entry.sampleName, entry.labelNames, entry.labelValues, entry.value));
+            }
+        });
+
+        if (unclaimed.isEmpty()) {
+            writer.write(families);
+        } else {
+            List<Collector.MetricFamilySamples> all = new ArrayList<>(families);
+            all.addAll(unclaimed.values());
+            writer.write(all);
+        }
+        writer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    private static String key(String name, List<String> labelNames, List<String> labelValues) {
+        StringBuilder key = new StringBuilder(name);
+        for (int i = 0; i < labelNames.size(); i++) {
+            key.append('\0').append(labelNames.get(i)).append('\0').append(labelValues.get(i));
+        }
+        return key.toString();
+    }
+}
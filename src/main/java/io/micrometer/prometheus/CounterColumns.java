@@ -0,0 +1,270 @@
+/**
+ * Copyright 2017 VMware, Inc.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.micrometer.prometheus;
+
+import io.micrometer.core.instrument.Tag;
+import io.prometheus.client.Collector;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Columnar store for the counters of one {@link MultiTagMicrometerCollector}. Every counter owns an integer
+ * slot. Its value lives in {@link #STRIPES} primitive cells, picked by the recording thread so that concurrent
+ * increments of the same counter rarely contend, and its labels are kept as {@link LabelDictionary} ids.
+ * Slots are grouped into pages, stripe by stripe, either on the heap or off-heap, and a scrape is a sequential
+ * pass over them. The first page holds {@link #FIRST_PAGE_SIZE} slots and every further page twice as many as
+ * the previous one, so a name with a handful of series costs a few hundred bytes while the number of pages
+ * stays logarithmic in the number of series.
+ * <p>
+ * Every slot has a generation that is bumped when its counter is removed, and a counter only adds to its slot
+ * while the generation it was allocated with is current, so a removed counter that is still held by someone
+ * stops counting. Released slots are reused after a {@link DelayedFreeList grace period}, long enough for an
+ * increment that checked the generation just before the removal to land before the slot is reset.
+ */
+final class CounterColumns {
+    static final int FIRST_PAGE_SIZE = 8;
+    static final int STRIPES = 4;
+
+    private static final int FIRST_PAGE_SHIFT = Integer.numberOfTrailingZeros(FIRST_PAGE_SIZE);
+    private static final VarHandle DIRECT_LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final LabelDictionary dictionary;
+    private final boolean offHeap;
+    private final AtomicInteger live = new AtomicInteger();
+
+    private final DelayedFreeList released = new DelayedFreeList();
+
+    private volatile Page[] pages = new Page[0];
+    private int nextSlot;
+
+    CounterColumns(LabelDictionary dictionary, boolean offHeap) {
+        this.dictionary = dictionary;
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * @return A slot whose current {@link #generation(int) generation} belongs to the new counter.
+     */
+    synchronized int allocate(List<Tag> tags) {
+        Page[] current = pages;
+        int slot = released.poll();
+        if (slot >= 0) {
+            Page page = current[page(slot)];
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                page.set(stripe * page.size + offset(slot), 0);
+            }
+        } else {
+            slot = nextSlot++;
+            if (page(slot) == current.length) {
+                int size = FIRST_PAGE_SIZE << current.length;
+                current = Arrays.copyOf(current, current.length + 1);
+                current[current.length - 1] = offHeap ? new DirectPage(size) : new HeapPage(size);
+                pages = current;
+            }
+        }
+
+        int[] labels = new int[tags.size() * 2];
+        for (int i = 0; i < tags.size(); i++) {
+            labels[i * 2] = dictionary.acquire(tags.get(i).getKey());
+            labels[i * 2 + 1] = dictionary.acquire(tags.get(i).getValue());
+        }
+        current[page(slot)].labels.set(offset(slot), labels);
+        live.incrementAndGet();
+        return slot;
+    }
+
+    int generation(int slot) {
+        return pages[page(slot)].generations.get(offset(slot));
+    }
+
+    /**
+     * Stops the counter of {@code generation} from counting and frees its slot. Releasing a generation that
+     * is no longer current does nothing.
+     */
+    synchronized void release(int slot, int generation) {
+        Page page = pages[page(slot)];
+        int offset = offset(slot);
+        if (!page.generations.compareAndSet(offset, generation, generation + 1)) {
+            return;
+        }
+
+        for (int label : page.labels.getAndSet(offset, null)) {
+            dictionary.release(label);
+        }
+        live.decrementAndGet();
+        released.add(slot);
+    }
+
+    boolean isEmpty() {
+        return live.get() == 0;
+    }
+
+    void add(int slot, int generation, double amount) {
+        Page page = pages[page(slot)];
+        int offset = offset(slot);
+        if (page.generations.get(offset) != generation) {
+            return;
+        }
+
+        int index = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * page.size + offset;
+        long prev;
+        long next;
+        do {
+            prev = page.get(index);
+            next = Double.doubleToRawLongBits(Double.longBitsToDouble(prev) + amount);
+        } while (!page.compareAndSet(index, prev, next));
+    }
+
+    /**
+     * @return The value of the counter of {@code generation}, or {@code 0} once it was released.
+     */
+    double get(int slot, int generation) {
+        Page page = pages[page(slot)];
+        int offset = offset(slot);
+        if (page.generations.get(offset) != generation) {
+            return 0;
+        }
+
+        double sum = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            sum += Double.longBitsToDouble(page.get(stripe * page.size + offset));
+        }
+        return sum;
+    }
+
+    /**
+     * @return One sample named {@code sampleName} per live counter.
+     */
+    List<Collector.MetricFamilySamples.Sample> samples(String sampleName) {
+        List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>(live.get());
+
+        for (Page page : pages) {
+            double[] sums = new double[page.size];
+            for (int index = 0; index < STRIPES * page.size; index++) {
+                sums[index & (page.size - 1)] += Double.longBitsToDouble(page.get(index));
+            }
+
+            for (int offset = 0; offset < page.size; offset++) {
+                int[] labels = page.labels.get(offset);
+                if (labels != null) {
+                    samples.add(sample(sampleName, labels, sums[offset]));
+                }
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Page {@code i} holds the slots from {@code FIRST_PAGE_SIZE * (2^i - 1)} on, so shifting a slot by
+     * {@link #FIRST_PAGE_SIZE} makes its highest bit select the page and the remaining bits the offset.
+     */
+    private static int page(int slot) {
+        return 31 - Integer.numberOfLeadingZeros(slot + FIRST_PAGE_SIZE) - FIRST_PAGE_SHIFT;
+    }
+
+    private static int offset(int slot) {
+        int shifted = slot + FIRST_PAGE_SIZE;
+        return shifted - Integer.highestOneBit(shifted);
+    }
+
+    private Collector.MetricFamilySamples.Sample sample(String sampleName, int[] labels, double value) {
+        List<String> keys = new ArrayList<>(labels.length / 2);
+        List<String> values = new ArrayList<>(labels.length / 2);
+        for (int i = 0; i < labels.length; i += 2) {
+            keys.add(dictionary.string(labels[i]));
+            values.add(dictionary.string(labels[i + 1]));
+        }
+        return new Collector.MetricFamilySamples.Sample(sampleName, keys, values, value);
+    }
+
+    private abstract static class Page {
+        final int size;
+        final AtomicReferenceArray<int[]> labels;
+        final AtomicIntegerArray generations;
+
+        Page(int size) {
+            this.size = size;
+            this.labels = new AtomicReferenceArray<>(size);
+            this.generations = new AtomicIntegerArray(size);
+        }
+
+        abstract long get(int index);
+
+        abstract void set(int index, long value);
+
+        abstract boolean compareAndSet(int index, long expect, long update);
+    }
+
+    private static final class HeapPage extends Page {
+        private final AtomicLongArray values;
+
+        HeapPage(int size) {
+            super(size);
+            this.values = new AtomicLongArray(STRIPES * size);
+        }
+
+        @Override
+        long get(int index) {
+            return values.get(index);
+        }
+
+        @Override
+        void set(int index, long value) {
+            values.set(index, value);
+        }
+
+        @Override
+        boolean compareAndSet(int index, long expect, long update) {
+            return values.compareAndSet(index, expect, update);
+        }
+    }
+
+    private static final class DirectPage extends Page {
+        private final ByteBuffer values;
+
+        DirectPage(int size) {
+            super(size);
+            this.values = ByteBuffer.allocateDirect(STRIPES * size * Long.BYTES + Long.BYTES - 1)
+                    .alignedSlice(Long.BYTES)
+                    .order(ByteOrder.nativeOrder());
+        }
+
+        @Override
+        long get(int index) {
+            return (long) DIRECT_LONGS.getVolatile(values, index * Long.BYTES);
+        }
+
+        @Override
+        void set(int index, long value) {
+            DIRECT_LONGS.setVolatile(values, index * Long.BYTES, value);
+        }
+
+        @Override
+        boolean compareAndSet(int index, long expect, long update) {
+            return DIRECT_LONGS.compareAndSet(values, index * Long.BYTES, expect, update);
+        }
+    }
+}
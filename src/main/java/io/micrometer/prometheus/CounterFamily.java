@@ -0,0 +1,132 @@
+/**
+ * Copyright 2017 VMware, Inc.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.micrometer.prometheus;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.lang.Nullable;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Counters sharing a name, looked up by label values instead of through {@link MeterRegistry#counter(String, String...)}.
+ * Binding values walks a tree of lock-free maps keyed by the values themselves, so that no {@code Tags} or
+ * {@code Meter.Id} is allocated once a counter has been registered. Hold on to the returned {@link Counter}
+ * and each increment costs nothing but the add itself.
+ * <pre>
+ * CounterFamily.Labels requests = registry.counterFamily("requests").labels("method", "status");
+ * requests.bind("GET", "200").increment();
+ * </pre>
+ * Different key sets can be used for the same family, each through its own {@link Labels}.
+ */
+public final class CounterFamily {
+    private final MeterRegistry registry;
+    private final String name;
+    private final ConcurrentMap<List<String>, Labels> labels = new ConcurrentHashMap<>();
+    private final Set<Meter> bound = ConcurrentHashMap.newKeySet();
+
+    CounterFamily(MeterRegistry registry, String name) {
+        this.registry = registry;
+        this.name = name;
+    }
+
+    /**
+     * @param keys the label keys the counters are bound with
+     * @return The counters of this family with exactly these label keys.
+     */
+    public Labels labels(String... keys) {
+        return labels.computeIfAbsent(Arrays.asList(keys.clone()), Labels::new);
+    }
+
+    /**
+     * Forgets every bound counter if {@code removed} is one of them, so that the next bind registers it again.
+     * Bound counters are matched by the meter itself rather than by name, since meter filters may have renamed
+     * them.
+     *
+     * @param removed a meter that was removed from the registry
+     */
+    void invalidate(Meter removed) {
+        if (bound.remove(removed)) {
+            labels.values().forEach(Labels::invalidate);
+            bound.clear();
+        }
+    }
+
+    /**
+     * Counters of a {@link CounterFamily} bound with a fixed set of label keys.
+     */
+    public final class Labels {
+        private final List<String> keys;
+        private volatile Node root = new Node();
+
+        private Labels(List<String> keys) {
+            this.keys = keys;
+        }
+
+        /**
+         * @param values label values, in the order of the keys
+         * @return The counter with these label values, registered on first use.
+         */
+        public Counter bind(String... values) {
+            if (values.length != keys.size()) {
+                throw new IllegalArgumentException("Expected " + keys.size() + " label values for " + keys + " but got " + values.length);
+            }
+
+            Node node = root;
+            for (String value : values) {
+                node = node.child(value);
+            }
+
+            Counter counter = node.counter;
+            if (counter == null) {
+                counter = register(values);
+                node.counter = counter;
+            }
+            return counter;
+        }
+
+        private Counter register(String[] values) {
+            String[] tags = new String[values.length * 2];
+            for (int i = 0; i < values.length; i++) {
+                tags[i * 2] = keys.get(i);
+                tags[i * 2 + 1] = values[i];
+            }
+            Counter counter = registry.counter(name, tags);
+            bound.add(counter);
+            return counter;
+        }
+
+        private void invalidate() {
+            root = new Node();
+        }
+    }
+
+    private static final class Node {
+        private final ConcurrentMap<String, Node> children = new ConcurrentHashMap<>();
+        @Nullable
+        private volatile Counter counter;
+
+        Node child(String value) {
+            Node child = children.get(value);
+            return child != null ? child : children.computeIfAbsent(value, v -> new Node());
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2017 VMware, Inc.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.micrometer.prometheus;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Released integer ids that become available for reuse only once they have been free for
+ * {@link #REUSE_DELAY_NANOS}, so that lock-free readers which picked up an id just before it was released
+ * finish with it before it means something else. Not thread-safe, callers guard it with their own lock.
+ */
+final class DelayedFreeList {
+    static final long REUSE_DELAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ArrayDeque<Released> released = new ArrayDeque<>();
+
+    void add(int id) {
+        released.addLast(new Released(id, System.nanoTime()));
+    }
+
+    /**
+     * @return The id released the longest ago if it may be reused, {@code -1} otherwise.
+     */
+    int poll() {
+        Released oldest = released.peekFirst();
+        if (oldest == null || System.nanoTime() - oldest.nanos < REUSE_DELAY_NANOS) {
+            return -1;
+        }
+        released.removeFirst();
+        return oldest.id;
+    }
+
+    private static final class Released {
+        final int id;
+        final long nanos;
+
+        Released(int id, long nanos) {
+            this.id = id;
+            this.nanos = nanos;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2017 VMware, Inc.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.micrometer.prometheus;
+
+/**
+ * How gauges reported by several worker processes are combined when their segments are exposed together.
+ *
+ * @see MultiTagPrometheusMeterRegistry#exposeSegments(java.nio.file.Path, GaugeMergeMode)
+ */
+public enum GaugeMergeMode {
+    /**
+     * Add up the values of all workers. The {@code _max} gauges of timers and distribution summaries still take
+     * the maximum, gauges that merely end in {@code _max} are summed like any other.
+     */
+    SUM,
+
+    /**
+     * Take the largest value of all workers.
+     */
+    MAX,
+
+    /**
+     * Keep one series per worker, told apart by a {@code pid} label.
+     */
+    PID
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2017 VMware, Inc.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.micrometer.prometheus;
+
+import io.micrometer.core.instrument.distribution.CountAtBucket;
+import io.micrometer.core.lang.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Exposition policy that merges adjacent cumulative histogram buckets at scrape time. Because buckets are
+ * cumulative, merging boils down to dropping boundaries: the kept buckets still carry exact counts. Recording
+ * is unaffected. Non-finite buckets are passed through untouched, the {@code +Inf} bucket is always emitted by
+ * the registry.
+ */
+final class HistogramBucketCoarsening {
+    @Nullable
+    private final double[] boundaries;
+    private final int maxBuckets;
+
+    private HistogramBucketCoarsening(@Nullable double[] boundaries, int maxBuckets) {
+        this.boundaries = boundaries;
+        this.maxBuckets = maxBuckets;
+    }
+
+    /**
+     * Keep, for every configured boundary, the recorded bucket with the largest boundary at or below it.
+     * Snapping to a recorded boundary rather than emitting the configured one keeps the counts exact.
+     */
+    static HistogramBucketCoarsening toBoundaries(double... boundaries) {
+        if (boundaries.length == 0) {
+            throw new IllegalArgumentException("at least one boundary is required");
+        }
+        double[] sorted = boundaries.clone();
+        Arrays.sort(sorted);
+        return new HistogramBucketCoarsening(sorted, 0);
+    }
+
+    /**
+     * Keep at most {@code maxBuckets} finite buckets, evenly spread over the recorded ones and always
+     * including the largest.
+     */
+    static HistogramBucketCoarsening toMaxBuckets(int maxBuckets) {
+        if (maxBuckets < 1) {
+            throw new IllegalArgumentException("maxBuckets must be at least 1: " + maxBuckets);
+        }
+        return new HistogramBucketCoarsening(null, maxBuckets);
+    }
+
+    /**
+     * @param counts cumulative buckets in ascending boundary order
+     * @param boundary the boundary of a bucket in the unit the policy was configured in
+     * @return the buckets to expose
+     */
+    CountAtBucket[] coarsen(CountAtBucket[] counts, ToDoubleFunction<CountAtBucket> boundary) {
+        int finite = 0;
+        while (finite < counts.length && Double.isFinite(boundary.applyAsDouble(counts[finite]))) {
+            finite++;
+        }
+
+        List<CountAtBucket> kept = new ArrayList<>();
+        if (boundaries != null) {
+            int next = 0;
+            int last = -1;
+            for (double target : boundaries) {
+                while (next < finite && boundary.applyAsDouble(counts[next]) <= target) {
+                    next++;
+                }
+                if (next - 1 > last) {
+                    last = next - 1;
+                    kept.add(counts[last]);
+                }
+            }
+        } else if (finite > maxBuckets) {
+            for (int i = 1; i <= maxBuckets; i++) {
+                kept.add(counts[(int) ((long) i * finite / maxBuckets) - 1]);
+            }
+        } else {
+            return counts;
+        }
+
+        kept.addAll(Arrays.asList(counts).subList(finite, counts.length));
+        return kept.toArray(new CountAtBucket[0]);
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2017 VMware, Inc.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.micrometer.prometheus;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.HistogramSupport;
+import io.micrometer.core.lang.Nullable;
+import io.micrometer.core.util.internal.logging.InternalLogger;
+import io.micrometer.core.util.internal.logging.InternalLoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Takes a {@link HistogramSnapshot} of every registered meter once per step on a background thread, so that
+ * scrapes read precomputed percentiles instead of computing them on the scrape thread. The step is split into
+ * {@link #TICKS_PER_STEP} ticks and meters are assigned to ticks round-robin, which spreads the work evenly
+ * across the interval.
+ */
+final class HistogramSnapshotRotator {
+    static final int TICKS_PER_STEP = 16;
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(HistogramSnapshotRotator.class);
+    private static final long MIN_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ConcurrentMap<Meter.Id, Slot> slots = new ConcurrentHashMap<>();
+    private final AtomicInteger assignedSlots = new AtomicInteger();
+    private final ScheduledFuture<?> rotation;
+
+    // only touched by the rotation task, which never runs concurrently with itself
+    private int tick;
+
+    HistogramSnapshotRotator(Duration step, ScheduledExecutorService executor) {
+        long tickNanos = Math.max(step.toNanos() / TICKS_PER_STEP, MIN_TICK_NANOS);
+        this.rotation = executor.scheduleAtFixedRate(this::rotate, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    Slot register(Meter.Id id, HistogramSupport meter) {
+        Slot slot = new Slot(meter, Math.floorMod(assignedSlots.getAndIncrement(), TICKS_PER_STEP));
+        slots.put(id, slot);
+        return slot;
+    }
+
+    void remove(Meter.Id id) {
+        slots.remove(id);
+    }
+
+    void close() {
+        rotation.cancel(false);
+    }
+
+    private void rotate() {
+        int current = tick;
+        tick = (tick + 1) % TICKS_PER_STEP;
+
+        for (Slot slot : slots.values()) {
+            if (slot.tick == current) {
+                try {
+                    slot.refresh();
+                } catch (RuntimeException e) {
+                    // an exception escaping the task would cancel all future rotations
+                    logger.warn("Failed to take histogram snapshot", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The most recent snapshot of a single meter.
+     */
+    static final class Slot {
+        private final HistogramSupport meter;
+        private final int tick;
+
+        @Nullable
+        private volatile HistogramSnapshot snapshot;
+
+        private Slot(HistogramSupport meter, int tick) {
+            this.meter = meter;
+            this.tick = tick;
+        }
+
+        /**
+         * @return The last published snapshot, or a fresh one if the meter hasn't been rotated yet.
+         */
+        HistogramSnapshot get() {
+            HistogramSnapshot current = snapshot;
+            if (current == null) {
+                current = meter.takeSnapshot();
+                snapshot = current;
+            }
+            return current;
+        }
+
+        void refresh() {
+            snapshot = meter.takeSnapshot();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2017 VMware, Inc.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.micrometer.prometheus;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assigns every distinct label key and value a dense integer id, so that columnar storage keeps a few ints
+ * per series instead of lists of strings. Ids are reference counted by the series that use them. Once the
+ * last one is released the string is dropped and its id is reused for another string after a
+ * {@link DelayedFreeList grace period}, so that a scrape still reading a just removed series resolves it
+ * correctly. Acquiring and releasing ids takes a lock, which only happens when series are added or removed,
+ * while lookups by id read a published array.
+ */
+final class LabelDictionary {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final DelayedFreeList released = new DelayedFreeList();
+    private volatile String[] strings = new String[64];
+    private int[] references = new int[64];
+    private int size;
+
+    /**
+     * @return The id of {@code string}, which stays assigned to it until every acquisition is {@link #release(int) released}.
+     */
+    synchronized int acquire(String string) {
+        Integer existing = ids.get(string);
+        int id = existing != null ? existing : register(string);
+        references[id]++;
+        return id;
+    }
+
+    synchronized void release(int id) {
+        if (--references[id] == 0) {
+            // the string stays readable by id until the id is reused
+            ids.remove(strings[id]);
+            released.add(id);
+        }
+    }
+
+    String string(int id) {
+        return strings[id];
+    }
+
+    private int register(String string) {
+        String[] current = strings;
+        int id = released.poll();
+        if (id < 0) {
+            id = size++;
+            if (id == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+                references = Arrays.copyOf(references, current.length);
+            }
+        }
+        current[id] = string;
+        // republish the array so readers that learn the id from a newly stored series also see the string
+        strings = current;
+        ids.put(string, id);
+        return id;
+    }
+}
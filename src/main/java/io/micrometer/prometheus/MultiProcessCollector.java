@@ -0,0 +1,149 @@
+/**
+ * Copyright 2017 VMware, Inc.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.micrometer.prometheus;
+
+import io.micrometer.core.util.internal.logging.InternalLogger;
+import io.micrometer.core.util.internal.logging.InternalLoggerFactory;
+import io.prometheus.client.Collector;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Exposes the {@link SampleSegment segments} written by worker processes to a shared directory, merging the
+ * series that several workers report. Counters, counts, sums and buckets are summed, gauges are combined
+ * according to the {@link GaugeMergeMode}, and quantiles, which can't be combined, always keep a {@code pid}
+ * label. The segments are read without any coordination with the workers. The meters of the exposing process
+ * itself are read live and merged in the same way, so every family is exposed exactly once.
+ */
+class MultiProcessCollector extends Collector implements Collector.Describable {
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String PID_LABEL = "pid";
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(MultiProcessCollector.class);
+
+    private final Path directory;
+    private final GaugeMergeMode gaugeMergeMode;
+    private final String ownPid;
+    private final Supplier<List<MetricFamilySamples>> ownSamples;
+
+    /**
+     * @param ownSamples the samples of the exposing process, which replace whatever its own segment holds
+     */
+    MultiProcessCollector(Path directory, GaugeMergeMode gaugeMergeMode, Supplier<List<MetricFamilySamples>> ownSamples) {
+        this.directory = directory;
+        this.gaugeMergeMode = gaugeMergeMode;
+        this.ownPid = Long.toString(ProcessHandle.current().pid());
+        this.ownSamples = ownSamples;
+    }
+
+    static String segmentName(long pid) {
+        return pid + SEGMENT_SUFFIX;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        Map<String, MergedFamily> families = new LinkedHashMap<>();
+
+        for (MetricFamilySamples family : ownSamples.get()) {
+            for (MetricFamilySamples.Sample sample : family.samples) {
+                families.computeIfAbsent(family.name, name -> new MergedFamily(name, family.type))
+                        .add(new SampleSegment.Entry(family.name, family.type, sample.name, sample.labelNames, sample.labelValues,
+                                sample.value, family instanceof MultiTagMicrometerCollector.MaximumFamilySamples), ownPid);
+            }
+        }
+
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path segment : segments) {
+                String fileName = segment.getFileName().toString();
+                String pid = fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length());
+                // the live samples of the exposing process are fresher than its own segment
+                if (pid.equals(ownPid)) {
+                    continue;
+                }
+
+                try {
+                    for (SampleSegment.Entry entry : SampleSegment.read(segment)) {
+                        families.computeIfAbsent(entry.familyName, name -> new MergedFamily(name, entry.type))
+                                .add(entry, pid);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // a segment left behind by an older version or damaged on disk mustn't fail the whole scrape
+                    logger.warn("Failed to read segment " + segment, e);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to list segments in " + directory, e);
+        }
+
+        return families.values().stream()
+                .map(MergedFamily::toMetricFamilySamples)
+                .collect(toList());
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+        // the exposed names depend on what the workers write
+        return Collections.emptyList();
+    }
+
+    private final class MergedFamily {
+        final String name;
+        final Type type;
+        final Map<List<Object>, MetricFamilySamples.Sample> samples = new LinkedHashMap<>();
+
+        MergedFamily(String name, Type type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        void add(SampleSegment.Entry entry, String pid) {
+            List<String> labelNames = entry.labelNames;
+            List<String> labelValues = entry.labelValues;
+            boolean max = false;
+
+            if (entry.labelNames.contains("quantile") || (type == Type.GAUGE && gaugeMergeMode == GaugeMergeMode.PID)) {
+                labelNames = new ArrayList<>(labelNames);
+                labelNames.add(PID_LABEL);
+                labelValues = new ArrayList<>(labelValues);
+                labelValues.add(pid);
+            } else if (type == Type.GAUGE) {
+                max = gaugeMergeMode == GaugeMergeMode.MAX || entry.maximum;
+            }
+
+            boolean takeMax = max;
+            samples.merge(Arrays.asList(entry.sampleName, labelNames, labelValues),
+                    new MetricFamilySamples.Sample(entry.sampleName, labelNames, labelValues, entry.value),
+                    (existing, added) -> new MetricFamilySamples.Sample(existing.name, existing.labelNames, existing.labelValues,
+                            takeMax ? Math.max(existing.value, added.value) : existing.value + added.value));
+        }
+
+        MetricFamilySamples toMetricFamilySamples() {
+            return new MetricFamilySamples(name, type, " ", new ArrayList<>(samples.values()));
+        }
+    }
+}
@@ -15,13 +15,18 @@
  */
 package io.micrometer.prometheus;
 
+import io.micrometer.core.instrument.Clock;
 import io.micrometer.core.instrument.Meter;
 import io.micrometer.core.instrument.Tag;
 import io.micrometer.core.instrument.config.NamingConvention;
+import io.micrometer.core.lang.Nullable;
+import io.micrometer.core.util.internal.logging.InternalLogger;
+import io.micrometer.core.util.internal.logging.InternalLoggerFactory;
 import io.prometheus.client.Collector;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.toList;
@@ -82,18 +87,63 @@ class MultiTagMicrometerCollector extends Collector implements Collector.Describ
         }
     }
 
+    /**
+     * Outcome of the most recent {@link #collect()} when a {@link ScrapeBudget} is in place.
+     */
+    enum ScrapeStatus {
+        OK, TRUNCATED, FAILED, CIRCUIT_OPEN
+    }
+
+    static final class ScrapeOutcome {
+        static final ScrapeOutcome OK = new ScrapeOutcome(ScrapeStatus.OK, 0);
+
+        final ScrapeStatus status;
+        final int skippedChildren;
+
+        ScrapeOutcome(ScrapeStatus status, int skippedChildren) {
+            this.status = status;
+            this.skippedChildren = skippedChildren;
+        }
+    }
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(MultiTagMicrometerCollector.class);
+    private static final Set<String> STRUCTURAL_LABELS = new HashSet<>(Arrays.asList("le", "vmrange", "statistic"));
+
     private final Meter.Id id;
     private final Map<TagsHolder, Child> children = new ConcurrentHashMap<>();
     private final String conventionName;
     private final String help;
-
-    public MultiTagMicrometerCollector(Meter.Id id, NamingConvention convention, PrometheusConfig config) {
+    private final Clock clock;
+
+    @Nullable
+    private volatile ScrapeBudget budget;
+    private final AtomicInteger consecutiveOverruns = new AtomicInteger();
+    // monotonic time may be negative, so an open circuit can't be told apart by its deadline alone
+    private volatile boolean circuitOpen;
+    private volatile long circuitOpenUntil;
+    private volatile ScrapeOutcome lastOutcome = ScrapeOutcome.OK;
+
+    @Nullable
+    private volatile Set<String> keptLabels;
+    @Nullable
+    private volatile CounterCheckpoint checkpoint;
+    @Nullable
+    private volatile CounterColumns columns;
+    private final Map<String, Type> knownFamilies = new ConcurrentHashMap<>();
+    private final Map<String, Type> declaredFamilies = new ConcurrentHashMap<>();
+
+    public MultiTagMicrometerCollector(Meter.Id id, NamingConvention convention, PrometheusConfig config, Clock clock) {
         this.id = id;
         this.conventionName = id.getConventionName(convention);
         this.help = config.descriptions() ? Optional.ofNullable(id.getDescription()).orElse(" ") : " ";
+        this.clock = clock;
     }
 
-    public void add(List<Tag> tags, Child child) {
+    /**
+     * @param type the type of the family named after the collector, as the child will report it
+     */
+    public void add(List<Tag> tags, Type type, Child child) {
+        declaredFamilies.put(conventionName, type);
         children.put(TagsHolder.from(tags), child);
     }
 
@@ -101,27 +151,284 @@ class MultiTagMicrometerCollector extends Collector implements Collector.Describ
         children.remove(TagsHolder.from(tags));
     }
 
+    /**
+     * Adds a counter backed by columnar storage instead of a {@link Child}. Must not be called concurrently
+     * for the same collector.
+     */
+    ColumnarCounter addColumnarCounter(Meter.Id id, LabelDictionary dictionary, boolean offHeap) {
+        CounterColumns columns = this.columns;
+        if (columns == null) {
+            columns = new CounterColumns(dictionary, offHeap);
+            this.columns = columns;
+        }
+        return new ColumnarCounter(id, columns, columns.allocate(id.getTags()));
+    }
+
+    void removeColumnarCounter(ColumnarCounter counter) {
+        CounterColumns columns = this.columns;
+        if (columns != null) {
+            columns.release(counter.getSlot(), counter.getGeneration());
+        }
+    }
+
     public boolean isEmpty() {
-        return children.isEmpty();
+        CounterColumns columns = this.columns;
+        return children.isEmpty() && (columns == null || columns.isEmpty());
+    }
+
+    String getConventionName() {
+        return conventionName;
+    }
+
+    void setBudget(@Nullable ScrapeBudget budget) {
+        this.budget = budget;
+        this.consecutiveOverruns.set(0);
+        this.circuitOpen = false;
+        this.lastOutcome = ScrapeOutcome.OK;
+    }
+
+    ScrapeOutcome getLastOutcome() {
+        return lastOutcome;
+    }
+
+    /**
+     * @param keptLabels labels to keep when pre-aggregating children at scrape time, {@code null} to expose
+     *                   every child as is
+     */
+    void setKeptLabels(@Nullable Set<String> keptLabels) {
+        this.keptLabels = keptLabels;
+    }
+
+    void setCheckpoint(@Nullable CounterCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * @return The cumulative samples of every child, including values restored from a previous process and
+     * before any aggregation, as they should be checkpointed.
+     */
+    List<MetricFamilySamples> collectCumulative() {
+        return collectUnaggregated().stream()
+                .map(family -> new MetricFamilySamples(family.name, family.type, family.help, family.samples.stream()
+                        .filter(sample -> CounterCheckpoint.isCumulative(id.getType(), family.type, family.name, sample.name))
+                        .collect(toList())))
+                .filter(family -> !family.samples.isEmpty())
+                .collect(toList());
+    }
+
+    /**
+     * @return The samples of every child, including values restored from a previous process, before any
+     * aggregation and regardless of the scrape budget. The {@code _max} gauge of timers and distribution
+     * summaries is a {@link MaximumFamilySamples}.
+     */
+    List<MetricFamilySamples> collectUnaggregated() {
+        CounterCheckpoint checkpoint = this.checkpoint;
+        return collectChildren(null, 0, null).values().stream()
+                .map(family -> checkpoint == null ? family : restore(family, checkpoint))
+                .map(family -> isMaximum(family) ?
+                        new MaximumFamilySamples(family.conventionName, family.type, help, family.samples) :
+                        new MetricFamilySamples(family.conventionName, family.type, help, family.samples))
+                .collect(toList());
+    }
+
+    private boolean isMaximum(Family family) {
+        switch (id.getType()) {
+            case TIMER:
+            case DISTRIBUTION_SUMMARY:
+                return family.type == Type.GAUGE && family.conventionName.equals(conventionName + "_max");
+            default:
+                return false;
+        }
     }
 
     @Override
     public List<MetricFamilySamples> collect() {
+        ScrapeShard shard = ScrapeShard.current();
+        // aggregated series are only known after merging, so they are sharded then
+        ScrapeShard childShard = keptLabels == null ? shard : null;
+
+        ScrapeBudget budget = this.budget;
+        if (budget == null) {
+            return toMetricFamilySamples(collectChildren(null, 0, childShard), shard);
+        }
+
+        long start = clock.monotonicTime();
+        if (circuitOpen) {
+            if (start - circuitOpenUntil < 0) {
+                lastOutcome = new ScrapeOutcome(ScrapeStatus.CIRCUIT_OPEN, children.size());
+                return Collections.emptyList();
+            }
+            circuitOpen = false;
+        }
+
+        Map<String, Family> families = collectChildren(budget, start, childShard);
+        boolean overrun = lastOutcome.status != ScrapeStatus.OK || clock.monotonicTime() - start > budget.budgetNanos;
+        if (!overrun) {
+            consecutiveOverruns.set(0);
+        } else if (consecutiveOverruns.incrementAndGet() >= budget.maxConsecutiveOverruns) {
+            consecutiveOverruns.set(0);
+            circuitOpenUntil = clock.monotonicTime() + budget.coolDownNanos;
+            circuitOpen = true;
+        }
+
+        ScrapeOutcome outcome = lastOutcome;
+        if (keptLabels != null && outcome.status != ScrapeStatus.OK) {
+            // an aggregate of some of the children would read as a counter reset, so none is exposed at all
+            lastOutcome = new ScrapeOutcome(outcome.status, children.size());
+            return Collections.emptyList();
+        }
+
+        return toMetricFamilySamples(families, shard);
+    }
+
+    /**
+     * Gathers the samples of every child. With a budget, children left over once the budget is spent are
+     * skipped and a child that throws is dropped instead of failing the whole scrape; the result is published
+     * through {@link #getLastOutcome()}. With a shard, only the children it owns are gathered. The budget is
+     * checked between children, so a single child that blocks still holds up the collection.
+     */
+    private Map<String, Family> collectChildren(@Nullable ScrapeBudget budget, long start, @Nullable ScrapeShard shard) {
         Map<String, Family> families = new HashMap<>();
+        int remaining = children.size();
+        int failed = 0;
+        ScrapeStatus status = ScrapeStatus.OK;
 
         for (Map.Entry<TagsHolder, Child> e : children.entrySet()) {
+            if (budget != null && clock.monotonicTime() - start > budget.budgetNanos) {
+                status = ScrapeStatus.TRUNCATED;
+                break;
+            }
+            remaining--;
+
             TagsHolder tags = e.getKey();
             Child child = e.getValue();
+            if (shard != null && !shard.owns(conventionName, tags.keys, tags.values)) {
+                continue;
+            }
+
+            List<Family> childFamilies;
+            try {
+                childFamilies = child.samples(conventionName, tags).collect(toList());
+            } catch (RuntimeException ex) {
+                if (budget == null) {
+                    throw ex;
+                }
+                logger.warn("Failed to collect " + conventionName + tags.values + ", leaving it out of the scrape", ex);
+                failed++;
+                status = ScrapeStatus.FAILED;
+                continue;
+            }
 
-            child.samples(conventionName, tags).forEach(family -> {
+            childFamilies.forEach(family -> {
                 families.compute(family.getConventionName(), (name, matchingFamily) -> matchingFamily != null ?
                         matchingFamily.addSamples(family.samples) : family);
             });
         }
 
-        return families.values().stream()
+        CounterColumns columns = this.columns;
+        if (columns != null) {
+            // a sequential pass over primitive arrays, cheap enough to never be cut short by the budget
+            Family family = new Family(Type.COUNTER, conventionName, columns.samples(conventionName).stream()
+                    .filter(sample -> shard == null || shard.owns(conventionName, sample.labelNames, sample.labelValues)));
+            families.compute(conventionName, (name, matchingFamily) -> matchingFamily != null ?
+                    matchingFamily.addSamples(family.samples) : family);
+        }
+
+        if (budget != null) {
+            lastOutcome = status == ScrapeStatus.OK ? ScrapeOutcome.OK :
+                    new ScrapeOutcome(status, failed + (status == ScrapeStatus.TRUNCATED ? Math.max(remaining, 0) : 0));
+        }
+        return families;
+    }
+
+    private List<MetricFamilySamples> toMetricFamilySamples(Map<String, Family> families, @Nullable ScrapeShard shard) {
+        families.values().forEach(family -> {
+            if (!family.samples.isEmpty()) {
+                knownFamilies.put(family.conventionName, family.type);
+            }
+        });
+
+        if (shard != null && !isEmpty()) {
+            // every shard carries the headers, even when it owns none of the series; the declared types take
+            // precedence since describe() can't tell a summary from a histogram
+            Map<String, Type> headers = new LinkedHashMap<>();
+            describe().forEach(family -> headers.put(family.name, family.type));
+            headers.putAll(knownFamilies);
+            headers.putAll(declaredFamilies);
+            headers.forEach((name, type) -> families.putIfAbsent(name, new Family(type, name)));
+        }
+
+        Set<String> keptLabels = this.keptLabels;
+        CounterCheckpoint checkpoint = this.checkpoint;
+        List<MetricFamilySamples> samples = families.values().stream()
+                .map(family -> checkpoint == null ? family : restore(family, checkpoint))
+                .map(family -> keptLabels == null ? family : aggregate(family, keptLabels))
+                .map(family -> keptLabels == null || shard == null ? family : shardAggregated(family, shard))
                 .map(family -> new MetricFamilySamples(family.conventionName, family.type, help, family.samples))
                 .collect(toList());
+        return shard == null ? samples : shard.markSharded(samples);
+    }
+
+    /**
+     * Keeps the aggregated series owned by the shard. A series is identified by its labels without the bucket
+     * and statistic labels, so that all samples of one series land in the same shard.
+     */
+    private Family shardAggregated(Family family, ScrapeShard shard) {
+        return new Family(family.type, family.conventionName, family.samples.stream().filter(sample -> {
+            List<String> keys = new ArrayList<>(sample.labelNames.size());
+            List<String> values = new ArrayList<>(sample.labelNames.size());
+            for (int i = 0; i < sample.labelNames.size(); i++) {
+                if (!STRUCTURAL_LABELS.contains(sample.labelNames.get(i))) {
+                    keys.add(sample.labelNames.get(i));
+                    values.add(sample.labelValues.get(i));
+                }
+            }
+            return shard.owns(conventionName, keys, values);
+        }));
+    }
+
+    private Family restore(Family family, CounterCheckpoint checkpoint) {
+        return new Family(family.type, family.conventionName, family.samples.stream().map(sample -> {
+            if (!CounterCheckpoint.isCumulative(id.getType(), family.type, family.conventionName, sample.name)) {
+                return sample;
+            }
+            double restored = checkpoint.restoredValue(sample);
+            return restored == 0 ? sample :
+                    new MetricFamilySamples.Sample(sample.name, sample.labelNames, sample.labelValues, sample.value + restored);
+        }));
+    }
+
+    /**
+     * Drops every label that isn't kept and merges the samples that end up with the same name and labels.
+     * Bucket and statistic labels are always kept, the {@code _max} gauge takes the maximum and everything
+     * else is summed. Client-side quantiles cannot be combined, so they are dropped.
+     */
+    private Family aggregate(Family family, Set<String> keptLabels) {
+        Map<List<Object>, MetricFamilySamples.Sample> merged = new LinkedHashMap<>();
+        String maxName = conventionName + "_max";
+
+        for (MetricFamilySamples.Sample sample : family.samples) {
+            if (sample.labelNames.contains("quantile")) {
+                continue;
+            }
+
+            List<String> keys = new ArrayList<>(sample.labelNames.size());
+            List<String> values = new ArrayList<>(sample.labelNames.size());
+            for (int i = 0; i < sample.labelNames.size(); i++) {
+                String key = sample.labelNames.get(i);
+                if (keptLabels.contains(key) || STRUCTURAL_LABELS.contains(key)) {
+                    keys.add(key);
+                    values.add(sample.labelValues.get(i));
+                }
+            }
+
+            merged.merge(Arrays.asList(sample.name, keys, values),
+                    new MetricFamilySamples.Sample(sample.name, keys, values, sample.value),
+                    (existing, added) -> new MetricFamilySamples.Sample(existing.name, existing.labelNames, existing.labelValues,
+                            existing.name.equals(maxName) ? Math.max(existing.value, added.value) : existing.value + added.value));
+        }
+
+        return new Family(family.type, family.conventionName, merged.values().stream());
     }
 
     @Override
@@ -156,6 +463,17 @@ class MultiTagMicrometerCollector extends Collector implements Collector.Describ
         Stream<Family> samples(String conventionName, TagsHolder tags);
     }
 
+    /**
+     * The {@code _max} gauge of a timer or distribution summary, which is combined with other processes by
+     * taking the maximum rather than according to the gauge merge mode. Gauges registered by users are never
+     * marked this way, whatever their name.
+     */
+    static final class MaximumFamilySamples extends MetricFamilySamples {
+        MaximumFamilySamples(String name, Type type, String help, List<Sample> samples) {
+            super(name, type, help, samples);
+        }
+    }
+
     static class Family {
         final Type type;
         final String conventionName;
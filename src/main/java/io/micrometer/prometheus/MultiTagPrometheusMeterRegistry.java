@@ -23,24 +23,37 @@ import io.micrometer.core.instrument.distribution.pause.PauseDetector;
 import io.micrometer.core.instrument.internal.CumulativeHistogramLongTaskTimer;
 import io.micrometer.core.instrument.internal.DefaultGauge;
 import io.micrometer.core.instrument.internal.DefaultMeter;
+import io.micrometer.core.instrument.util.NamedThreadFactory;
 import io.micrometer.core.lang.Nullable;
+import io.micrometer.core.util.internal.logging.InternalLogger;
+import io.micrometer.core.util.internal.logging.InternalLoggerFactory;
 import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.exporter.common.TextFormat;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.io.Writer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.ToDoubleFunction;
+import java.util.function.Supplier;
 import java.util.function.ToLongFunction;
 import java.util.stream.Stream;
 
@@ -54,9 +67,35 @@ import static java.util.stream.StreamSupport.stream;
  * @author Johnny Lim
  */
 public class MultiTagPrometheusMeterRegistry extends PrometheusMeterRegistry {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(MultiTagPrometheusMeterRegistry.class);
+
     private final PrometheusConfig prometheusConfig;
     private final CollectorRegistry registry;
     private final ConcurrentMap<String, MultiTagMicrometerCollector> collectorMap = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, HistogramBucketCoarsening> bucketCoarsenings = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<String>> aggregations = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CounterFamily> counterFamilies = new ConcurrentHashMap<>();
+
+    @Nullable
+    private volatile ScrapeBudget scrapeBudget;
+    @Nullable
+    private volatile ScrapeStatusCollector scrapeStatus;
+
+    @Nullable
+    private volatile HistogramSnapshotRotator snapshotRotator;
+    @Nullable
+    private ScheduledExecutorService backgroundExecutor;
+    @Nullable
+    private volatile CounterCheckpoint counterCheckpoint;
+    @Nullable
+    private volatile SampleSegment.Writer segmentWriter;
+    private volatile boolean exposingSegments;
+    @Nullable
+    private volatile LabelDictionary columnarDictionary;
+    private volatile boolean columnarOffHeap;
+    private volatile double sketchRelativeAccuracy;
+    private volatile double sketchBucketRelativeAccuracy;
+    private volatile boolean sketchBuckets;
 
     public MultiTagPrometheusMeterRegistry(PrometheusConfig config) {
         this(config, new CollectorRegistry(), Clock.SYSTEM);
@@ -130,7 +169,57 @@ public class MultiTagPrometheusMeterRegistry extends PrometheusMeterRegistry {
     }
 
     private void scrape(Writer writer, String contentType, Enumeration<Collector.MetricFamilySamples> samples) throws IOException {
-        TextFormat.writeFormat(contentType, writer, samples);
+        ScrapeStatusCollector status = scrapeStatus;
+        TextFormat.writeFormat(contentType, writer, status == null ? samples : status.emitLast(samples));
+    }
+
+    /**
+     * Return text for scraping one of several disjoint shards of this registry.
+     *
+     * @param contentType the Content-Type of the scrape.
+     * @param shardIndex the shard to scrape, from {@code 0} to {@code shardCount - 1}
+     * @param shardCount the number of shards the registry is split into
+     * @return Content that should be included in the response body for an endpoint designated for
+     * Prometheus to scrape from.
+     * @see #scrape(Writer, String, int, int)
+     */
+    public String scrape(String contentType, int shardIndex, int shardCount) {
+        Writer writer = new StringWriter();
+        try {
+            scrape(writer, contentType, shardIndex, shardCount);
+        } catch (IOException e) {
+            // This actually never happens since StringWriter::write() doesn't throw any IOException
+            throw new RuntimeException(e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Scrape one of several disjoint shards of this registry to the specified writer, so that several
+     * Prometheus servers can split a single target between them. Each series is assigned to a shard by a
+     * stable hash of its name and tags, so the shards neither overlap nor leave gaps, and every shard carries
+     * the {@code # HELP} and {@code # TYPE} headers of all metrics. Collectors registered directly with the
+     * underlying {@link CollectorRegistry} are not split and only appear in shard {@code 0}.
+     *
+     * @param writer Target that serves the content to be scraped by Prometheus.
+     * @param contentType the Content-Type of the scrape.
+     * @param shardIndex the shard to scrape, from {@code 0} to {@code shardCount - 1}
+     * @param shardCount the number of shards the registry is split into
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if this registry {@link #exposeSegments(Path, GaugeMergeMode) exposes segments}
+     */
+    public void scrape(Writer writer, String contentType, int shardIndex, int shardCount) throws IOException {
+        if (exposingSegments) {
+            throw new IllegalStateException("A registry that exposes segments can't be scraped in shards");
+        }
+
+        ScrapeShard shard = new ScrapeShard(shardIndex, shardCount);
+        shard.bind();
+        try {
+            scrape(writer, contentType, shard.filter(registry.metricFamilySamples()));
+        } finally {
+            shard.unbind();
+        }
     }
 
     /**
@@ -169,11 +258,31 @@ public class MultiTagPrometheusMeterRegistry extends PrometheusMeterRegistry {
         scrape(writer, contentType, samples);
     }
 
+    /**
+     * Counters named {@code name} that are looked up by label values, without the {@code Tags} and
+     * {@code Meter.Id} allocations of {@link #counter(String, String...)} once a counter has been registered.
+     *
+     * @param name the counter name
+     * @return The family of counters named {@code name}
+     * @see CounterFamily
+     */
+    public CounterFamily counterFamily(String name) {
+        return counterFamilies.computeIfAbsent(name, n -> new CounterFamily(this, n));
+    }
+
     @Override
     public Counter newCounter(Meter.Id id) {
+        LabelDictionary dictionary = columnarDictionary;
+        if (dictionary != null) {
+            boolean offHeap = columnarOffHeap;
+            ColumnarCounter[] counter = new ColumnarCounter[1];
+            applyToCollector(id, (collector) -> counter[0] = collector.addColumnarCounter(id, dictionary, offHeap));
+            return counter[0];
+        }
+
         PrometheusCounter counter = new PrometheusCounter(id);
         applyToCollector(id, (collector) -> {
-            collector.add(id.getTags(), (conventionName, tags) -> Stream.of(new MultiTagMicrometerCollector.Family(Collector.Type.COUNTER, conventionName,
+            collector.add(id.getTags(), Collector.Type.COUNTER, (conventionName, tags) -> Stream.of(new MultiTagMicrometerCollector.Family(Collector.Type.COUNTER, conventionName,
                     new Collector.MetricFamilySamples.Sample(conventionName, tags.keys, tags.values, counter.count()))));
         });
         return counter;
@@ -181,13 +290,43 @@ public class MultiTagPrometheusMeterRegistry extends PrometheusMeterRegistry {
 
     @Override
     public DistributionSummary newDistributionSummary(Meter.Id id, DistributionStatisticConfig distributionStatisticConfig, double scale) {
-        PrometheusDistributionSummary summary = new PrometheusDistributionSummary(id, clock, distributionStatisticConfig, scale, prometheusConfig.histogramFlavor());
+        DistributionSummary summary;
+        Supplier<ValueAtPercentile[]> percentiles;
+        Supplier<CountAtBucket[]> buckets;
+        boolean sketchBuckets = false;
+        if (usesSketch(distributionStatisticConfig)) {
+            sketchBuckets = exposesSketchBuckets(distributionStatisticConfig);
+            SketchDistributionSummary sketchSummary = new SketchDistributionSummary(id, clock, distributionStatisticConfig, scale,
+                    sketchRelativeAccuracy, sketchBucketRelativeAccuracy, sketchBuckets);
+            summary = sketchSummary;
+            percentiles = sketchSummary::percentileValues;
+            buckets = sketchSummary::histogramCounts;
+        } else {
+            PrometheusDistributionSummary prometheusSummary = new PrometheusDistributionSummary(id, clock, distributionStatisticConfig, scale, prometheusConfig.histogramFlavor());
+            summary = prometheusSummary;
+            percentiles = () -> prometheusSummary.takeSnapshot().percentileValues();
+            buckets = prometheusSummary::histogramCounts;
+
+            HistogramSnapshotRotator rotator = snapshotRotator;
+            if (rotator != null) {
+                if (distributionStatisticConfig.isPublishingPercentiles()) {
+                    HistogramSnapshotRotator.Slot slot = rotator.register(id, prometheusSummary);
+                    percentiles = () -> slot.get().percentileValues();
+                } else {
+                    percentiles = () -> new ValueAtPercentile[0];
+                }
+            }
+        }
+
+        Supplier<ValueAtPercentile[]> percentileSource = percentiles;
+        Supplier<CountAtBucket[]> bucketSource = buckets;
+        Collector.Type type = distributionType(distributionStatisticConfig, sketchBuckets);
         applyToCollector(id, (collector) -> {
-            collector.add(id.getTags(), (conventionName, tags) -> {
+            collector.add(id.getTags(), type, (conventionName, tags) -> {
                 Stream.Builder<Collector.MetricFamilySamples.Sample> samples = Stream.builder();
 
-                final ValueAtPercentile[] percentileValues = summary.takeSnapshot().percentileValues();
-                final CountAtBucket[] histogramCounts = summary.histogramCounts();
+                final ValueAtPercentile[] percentileValues = percentileSource.get();
+                CountAtBucket[] histogramCounts = bucketSource.get();
                 double count = summary.count();
 
                 if (percentileValues.length > 0) {
@@ -203,16 +342,14 @@ public class MultiTagPrometheusMeterRegistry extends PrometheusMeterRegistry {
                     }
                 }
 
-                Collector.Type type = Collector.Type.SUMMARY;
                 if (histogramCounts.length > 0) {
                     // Prometheus doesn't balk at a metric being BOTH a histogram and a summary
-                    type = Collector.Type.HISTOGRAM;
-
                     List<String> histogramKeys = new LinkedList<>(tags.getKeys());
                     String sampleName = conventionName + "_bucket";
-                    switch (summary.histogramFlavor()) {
+                    switch (prometheusConfig.histogramFlavor()) {
                         case Prometheus:
                             histogramKeys.add("le");
+                            histogramCounts = coarsen(id, histogramCounts, CountAtBucket::bucket);
 
                             // satisfies https://prometheus.io/docs/concepts/metric_types/#histogram
                             for (CountAtBucket c : histogramCounts) {
@@ -222,7 +359,7 @@ public class MultiTagPrometheusMeterRegistry extends PrometheusMeterRegistry {
                                         sampleName, histogramKeys, histogramValues, c.count()));
                             }
 
-                            if (Double.isFinite(histogramCounts[histogramCounts.length - 1].bucket())) {
+                            if (histogramCounts.length == 0 || Double.isFinite(histogramCounts[histogramCounts.length - 1].bucket())) {
                                 // the +Inf bucket should always equal `count`
                                 final List<String> histogramValues = new LinkedList<>(tags.getValues());
                                 histogramValues.add("+Inf");
@@ -262,17 +399,68 @@ public class MultiTagPrometheusMeterRegistry extends PrometheusMeterRegistry {
 
     @Override
     protected io.micrometer.core.instrument.Timer newTimer(Meter.Id id, DistributionStatisticConfig distributionStatisticConfig, PauseDetector pauseDetector) {
+        if (usesSketch(distributionStatisticConfig)) {
+            // percentiles of a sketch are cheap enough to compute on the scrape thread
+            boolean sketchBuckets = exposesSketchBuckets(distributionStatisticConfig);
+            SketchTimer sketchTimer = new SketchTimer(id, clock, distributionStatisticConfig, pauseDetector,
+                    sketchRelativeAccuracy, sketchBucketRelativeAccuracy, sketchBuckets);
+            applyToCollector(id, (collector) -> addDistributionStatisticSamples(distributionType(distributionStatisticConfig, sketchBuckets),
+                    collector, sketchTimer::takeSnapshot, id, false));
+            return sketchTimer;
+        }
+
         PrometheusTimer timer = new PrometheusTimer(id, clock, distributionStatisticConfig, pauseDetector, prometheusConfig.histogramFlavor());
-        applyToCollector(id, (collector) ->
-                addDistributionStatisticSamples(distributionStatisticConfig, collector, timer, id, false));
+        Supplier<HistogramSnapshot> snapshots = timer::takeSnapshot;
+        HistogramSnapshotRotator rotator = snapshotRotator;
+        if (rotator != null) {
+            // only the percentiles come from the rotated snapshot, everything else is cheap to read live
+            if (distributionStatisticConfig.isPublishingPercentiles()) {
+                HistogramSnapshotRotator.Slot slot = rotator.register(id, timer);
+                snapshots = () -> liveSnapshot(timer, slot.get().percentileValues());
+            } else {
+                snapshots = () -> liveSnapshot(timer, new ValueAtPercentile[0]);
+            }
+        }
+
+        Supplier<HistogramSnapshot> snapshotSource = snapshots;
+        applyToCollector(id, (collector) -> addDistributionStatisticSamples(distributionType(distributionStatisticConfig, false),
+                collector, snapshotSource, id, false));
         return timer;
     }
 
+    private boolean usesSketch(DistributionStatisticConfig distributionStatisticConfig) {
+        double[] slos = distributionStatisticConfig.getServiceLevelObjectiveBoundaries();
+        // a percentile histogram keeps Micrometer's buckets unless the sketch exposes buckets of its own
+        return sketchRelativeAccuracy > 0 && distributionStatisticConfig.isPublishingPercentiles() && (slos == null || slos.length == 0) &&
+                (!Boolean.TRUE.equals(distributionStatisticConfig.isPercentileHistogram()) || exposesSketchBuckets(distributionStatisticConfig));
+    }
+
+    private boolean exposesSketchBuckets(DistributionStatisticConfig distributionStatisticConfig) {
+        // vmrange buckets aren't cumulative, sketch buckets are only exposed with the Prometheus flavor, and an
+        // unbounded range would span the whole indexable range of the sketch
+        Double maxValue = distributionStatisticConfig.getMaximumExpectedValueAsDouble();
+        return sketchBuckets && prometheusConfig.histogramFlavor() == HistogramFlavor.Prometheus &&
+                maxValue != null && !maxValue.isInfinite();
+    }
+
+    static DistributionStatisticConfig withoutPercentiles(DistributionStatisticConfig distributionStatisticConfig) {
+        return DistributionStatisticConfig.builder()
+                .percentiles()
+                .percentilesHistogram(false)
+                .build()
+                .merge(distributionStatisticConfig);
+    }
+
+    private static HistogramSnapshot liveSnapshot(PrometheusTimer timer, ValueAtPercentile[] percentileValues) {
+        return new HistogramSnapshot(timer.count(), timer.totalTime(TimeUnit.NANOSECONDS), timer.max(TimeUnit.NANOSECONDS),
+                percentileValues, timer.histogramCounts(), null);
+    }
+
     @Override
     protected <T> io.micrometer.core.instrument.Gauge newGauge(Meter.Id id, @Nullable T obj, ToDoubleFunction<T> valueFunction) {
         Gauge gauge = new DefaultGauge<>(id, obj, valueFunction);
         applyToCollector(id, (collector) -> {
-            collector.add(id.getTags(), (conventionName, tags) -> Stream.of(new MultiTagMicrometerCollector.Family(Collector.Type.GAUGE, conventionName,
+            collector.add(id.getTags(), Collector.Type.GAUGE, (conventionName, tags) -> Stream.of(new MultiTagMicrometerCollector.Family(Collector.Type.GAUGE, conventionName,
                     new Collector.MetricFamilySamples.Sample(conventionName, tags.getKeys(), tags.getValues(), gauge.value()))));
         });
         return gauge;
@@ -281,8 +469,8 @@ public class MultiTagPrometheusMeterRegistry extends PrometheusMeterRegistry {
     @Override
     protected LongTaskTimer newLongTaskTimer(Meter.Id id, DistributionStatisticConfig distributionStatisticConfig) {
         LongTaskTimer ltt = new CumulativeHistogramLongTaskTimer(id, clock, getBaseTimeUnit(), distributionStatisticConfig);
-        applyToCollector(id, (collector) ->
-                addDistributionStatisticSamples(distributionStatisticConfig, collector, ltt, id, true));
+        applyToCollector(id, (collector) -> addDistributionStatisticSamples(distributionType(distributionStatisticConfig, false),
+                collector, ltt::takeSnapshot, id, true));
         return ltt;
     }
 
@@ -290,7 +478,7 @@ public class MultiTagPrometheusMeterRegistry extends PrometheusMeterRegistry {
     protected <T> FunctionTimer newFunctionTimer(Meter.Id id, T obj, ToLongFunction<T> countFunction, ToDoubleFunction<T> totalTimeFunction, TimeUnit totalTimeFunctionUnit) {
         FunctionTimer ft = new CumulativeFunctionTimer<>(id, obj, countFunction, totalTimeFunction, totalTimeFunctionUnit, getBaseTimeUnit());
         applyToCollector(id, (collector) -> {
-            collector.add(id.getTags(), (conventionName, tags) -> Stream.of(new MultiTagMicrometerCollector.Family(Collector.Type.SUMMARY, conventionName,
+            collector.add(id.getTags(), Collector.Type.SUMMARY, (conventionName, tags) -> Stream.of(new MultiTagMicrometerCollector.Family(Collector.Type.SUMMARY, conventionName,
                     new Collector.MetricFamilySamples.Sample(conventionName + "_count", tags.getKeys(), tags.getValues(), ft.count()),
                     new Collector.MetricFamilySamples.Sample(conventionName + "_sum", tags.getKeys(), tags.getValues(), ft.totalTime(TimeUnit.SECONDS))
             )));
@@ -302,7 +490,7 @@ public class MultiTagPrometheusMeterRegistry extends PrometheusMeterRegistry {
     protected <T> FunctionCounter newFunctionCounter(Meter.Id id, T obj, ToDoubleFunction<T> countFunction) {
         FunctionCounter fc = new CumulativeFunctionCounter<>(id, obj, countFunction);
         applyToCollector(id, (collector) -> {
-            collector.add(id.getTags(), (conventionName, tags) -> Stream.of(new MultiTagMicrometerCollector.Family(Collector.Type.COUNTER, conventionName,
+            collector.add(id.getTags(), Collector.Type.COUNTER, (conventionName, tags) -> Stream.of(new MultiTagMicrometerCollector.Family(Collector.Type.COUNTER, conventionName,
                     new Collector.MetricFamilySamples.Sample(conventionName, tags.getKeys(), tags.getValues(), fc.count())
             )));
         });
@@ -328,7 +516,7 @@ public class MultiTagPrometheusMeterRegistry extends PrometheusMeterRegistry {
         final Collector.Type finalPromType = promType;
 
         applyToCollector(id, (collector) -> {
-            collector.add(id.getTags(), (conventionName, tags) -> {
+            collector.add(id.getTags(), finalPromType, (conventionName, tags) -> {
                 List<String> statKeys = new LinkedList<>(tags.getKeys());
                 statKeys.add("statistic");
 
@@ -375,12 +563,19 @@ public class MultiTagPrometheusMeterRegistry extends PrometheusMeterRegistry {
         return registry;
     }
 
-    private void addDistributionStatisticSamples(DistributionStatisticConfig distributionStatisticConfig, MultiTagMicrometerCollector collector,
-                                                 HistogramSupport histogramSupport, Meter.Id id, boolean forLongTaskTimer) {
-        collector.add(id.getTags(), (conventionName, tags) -> {
+    /**
+     * The type is decided once from the configuration, so that it's known before the meter is first collected.
+     */
+    private static Collector.Type distributionType(DistributionStatisticConfig distributionStatisticConfig, boolean sketchBuckets) {
+        return distributionStatisticConfig.isPublishingHistogram() || sketchBuckets ? Collector.Type.HISTOGRAM : Collector.Type.SUMMARY;
+    }
+
+    private void addDistributionStatisticSamples(Collector.Type type, MultiTagMicrometerCollector collector,
+                                                 Supplier<HistogramSnapshot> snapshots, Meter.Id id, boolean forLongTaskTimer) {
+        collector.add(id.getTags(), type, (conventionName, tags) -> {
             Stream.Builder<Collector.MetricFamilySamples.Sample> samples = Stream.builder();
 
-            HistogramSnapshot histogramSnapshot = histogramSupport.takeSnapshot();
+            HistogramSnapshot histogramSnapshot = snapshots.get();
             ValueAtPercentile[] percentileValues = histogramSnapshot.percentileValues();
             CountAtBucket[] histogramCounts = histogramSnapshot.histogramCounts();
             double count = histogramSnapshot.count();
@@ -398,17 +593,15 @@ public class MultiTagPrometheusMeterRegistry extends PrometheusMeterRegistry {
                 }
             }
 
-            Collector.Type type = distributionStatisticConfig.isPublishingHistogram() ? Collector.Type.HISTOGRAM : Collector.Type.SUMMARY;
             if (histogramCounts.length > 0) {
                 // Prometheus doesn't balk at a metric being BOTH a histogram and a summary
-                type = Collector.Type.HISTOGRAM;
-
                 List<String> histogramKeys = new LinkedList<>(tags.getKeys());
 
                 String sampleName = conventionName + "_bucket";
                 switch (prometheusConfig.histogramFlavor()) {
                     case Prometheus:
                         histogramKeys.add("le");
+                        histogramCounts = coarsen(id, histogramCounts, c -> c.bucket(TimeUnit.SECONDS));
 
                         // satisfies https://prometheus.io/docs/concepts/metric_types/#histogram
                         for (CountAtBucket c : histogramCounts) {
@@ -453,13 +646,33 @@ public class MultiTagPrometheusMeterRegistry extends PrometheusMeterRegistry {
         });
     }
 
+    private CountAtBucket[] coarsen(Meter.Id id, CountAtBucket[] histogramCounts, ToDoubleFunction<CountAtBucket> boundary) {
+        HistogramBucketCoarsening coarsening = bucketCoarsenings.get(id.getName());
+        return coarsening == null ? histogramCounts : coarsening.coarsen(histogramCounts, boundary);
+    }
+
     private void onMeterRemoved(Meter meter) {
+        if (meter instanceof Counter) {
+            counterFamilies.values().forEach(family -> family.invalidate(meter));
+        }
+
+        HistogramSnapshotRotator rotator = snapshotRotator;
+        if (rotator != null) {
+            rotator.remove(meter.getId());
+        }
+
         MultiTagMicrometerCollector collector = collectorMap.get(getConventionName(meter.getId()));
         if (collector != null) {
-            collector.remove(meter.getId().getTags());
+            if (meter instanceof ColumnarCounter) {
+                collector.removeColumnarCounter((ColumnarCounter) meter);
+            } else {
+                collector.remove(meter.getId().getTags());
+            }
             if (collector.isEmpty()) {
                 collectorMap.remove(getConventionName(meter.getId()));
-                getPrometheusRegistry().unregister(collector);
+                if (!exposingSegments) {
+                    getPrometheusRegistry().unregister(collector);
+                }
             }
         }
     }
@@ -468,8 +681,13 @@ public class MultiTagPrometheusMeterRegistry extends PrometheusMeterRegistry {
         collectorMap.compute(getConventionName(id), (name, existingCollector) -> {
             MultiTagMicrometerCollector collector = existingCollector;
             if (collector == null) {
-                collector = new MultiTagMicrometerCollector(id, config().namingConvention(), prometheusConfig);
-                collector.register(registry);
+                collector = new MultiTagMicrometerCollector(id, config().namingConvention(), prometheusConfig, clock);
+                collector.setBudget(scrapeBudget);
+                collector.setKeptLabels(aggregations.get(name));
+                collector.setCheckpoint(counterCheckpoint);
+                if (!exposingSegments) {
+                    collector.register(registry);
+                }
             }
 
             consumer.accept(collector);
@@ -485,6 +703,363 @@ public class MultiTagPrometheusMeterRegistry extends PrometheusMeterRegistry {
                 .merge(DistributionStatisticConfig.DEFAULT);
     }
 
+    /**
+     * Bound the time every meter name may spend producing its samples during a scrape. A collector that runs
+     * out of budget emits the series it has gathered so far and skips the rest, and a child that throws is
+     * dropped instead of failing the scrape. A collector that overruns its budget {@code maxConsecutiveOverruns}
+     * scrapes in a row is skipped entirely for {@code coolDown}. What was skipped by the last collection is
+     * published as the {@code micrometer_scrape_skipped_children} gauge, which the scrape methods of this registry
+     * collect last so that it describes the same scrape. Scraping the {@link #getPrometheusRegistry() underlying
+     * registry} directly may report the previous scrape instead.
+     * <p>
+     * The budget is checked between children, it cannot interrupt one. A gauge function or any other child
+     * that blocks still holds up the scrape for as long as it blocks.
+     *
+     * @param budget time each collector may spend per scrape
+     * @param maxConsecutiveOverruns overruns in a row after which the collector's circuit opens
+     * @param coolDown how long an open circuit skips the collector
+     * @return This registry
+     * @throws IllegalStateException if this registry {@link #exposeSegments(Path, GaugeMergeMode) exposes segments}
+     */
+    public synchronized MultiTagPrometheusMeterRegistry scrapeDeadline(Duration budget, int maxConsecutiveOverruns, Duration coolDown) {
+        if (exposingSegments) {
+            throw new IllegalStateException("A registry that exposes segments can't bound its scrapes");
+        }
+
+        ScrapeBudget scrapeBudget = new ScrapeBudget(budget, maxConsecutiveOverruns, coolDown);
+        this.scrapeBudget = scrapeBudget;
+        collectorMap.values().forEach(collector -> collector.setBudget(scrapeBudget));
+
+        if (scrapeStatus == null) {
+            scrapeStatus = new ScrapeStatusCollector(collectorMap.values()).register(registry);
+        }
+
+        return this;
+    }
+
+    /**
+     * Compute the percentiles of timers and distribution summaries on a background thread instead of on the
+     * scrape thread. Every meter registered after this call is snapshotted once per {@link PrometheusConfig#step()},
+     * spread evenly across the interval, and scrapes read the most recent snapshot. Counts, sums and histogram
+     * buckets are still read live, so only the percentiles may lag by up to one step.
+     *
+     * @return This registry
+     */
+    public synchronized MultiTagPrometheusMeterRegistry rotateSnapshotsInBackground() {
+        if (snapshotRotator == null) {
+            snapshotRotator = new HistogramSnapshotRotator(prometheusConfig.step(), backgroundExecutor());
+        }
+        return this;
+    }
+
+    /**
+     * Expose the Prometheus histogram of meters named {@code meterName} with fewer buckets. At scrape time
+     * adjacent cumulative buckets are merged so that only the recorded bucket at or below each of the given
+     * boundaries remains, plus {@code +Inf}. Recording keeps its full resolution.
+     *
+     * @param meterName the meter name, before any naming convention is applied
+     * @param boundaries bucket boundaries to keep, in seconds for timers and in base units for distribution summaries
+     * @return This registry
+     */
+    public MultiTagPrometheusMeterRegistry coarsenHistogram(String meterName, double... boundaries) {
+        bucketCoarsenings.put(meterName, HistogramBucketCoarsening.toBoundaries(boundaries));
+        return this;
+    }
+
+    /**
+     * Expose the Prometheus histogram of meters named {@code meterName} with at most {@code maxBuckets} finite
+     * buckets, plus {@code +Inf}. At scrape time adjacent cumulative buckets are merged, keeping evenly spread
+     * boundaries. Recording keeps its full resolution.
+     *
+     * @param meterName the meter name, before any naming convention is applied
+     * @param maxBuckets the maximum number of finite buckets to expose
+     * @return This registry
+     */
+    public MultiTagPrometheusMeterRegistry coarsenHistogram(String meterName, int maxBuckets) {
+        bucketCoarsenings.put(meterName, HistogramBucketCoarsening.toMaxBuckets(maxBuckets));
+        return this;
+    }
+
+    /**
+     * Pre-aggregate the series of a metric at scrape time. Children that share the values of
+     * {@code keptLabels} are merged into a single series: counters, {@code _count}, {@code _sum} and cumulative
+     * buckets are summed and {@code _max} takes the maximum. Quantiles can't be merged and are dropped.
+     * Full detail is kept in-process.
+     *
+     * @param conventionName the metric name after the naming convention is applied, e.g. {@code http_requests_seconds}
+     * @param keptLabels labels to keep, all other labels are summed away
+     * @return This registry
+     * @throws IllegalStateException if this registry {@link #exposeSegments(Path, GaugeMergeMode) exposes segments}
+     */
+    public synchronized MultiTagPrometheusMeterRegistry aggregate(String conventionName, String... keptLabels) {
+        if (exposingSegments) {
+            throw new IllegalStateException("A registry that exposes segments can't aggregate " + conventionName);
+        }
+
+        Set<String> labels = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(keptLabels)));
+        collectorMap.compute(conventionName, (name, collector) -> {
+            aggregations.put(name, labels);
+            if (collector != null) {
+                collector.setKeptLabels(labels);
+            }
+            return collector;
+        });
+        return this;
+    }
+
+    /**
+     * Keep counters, function counters and the counts, sums and buckets of histograms monotonic across restarts.
+     * Their values are checkpointed to a memory-mapped {@code file} every {@code interval} and once more when the
+     * registry is closed. Values found in the file when this is called are added to the series with the same
+     * name and tags as soon as their meter is registered again. Checkpointing reads meters the same way a scrape
+     * does and never blocks recording.
+     *
+     * @param file where the checkpoint is kept
+     * @param interval how often to checkpoint
+     * @return This registry
+     */
+    public synchronized MultiTagPrometheusMeterRegistry persistCounters(Path file, Duration interval) {
+        if (counterCheckpoint != null) {
+            throw new IllegalStateException("Counters are already being persisted");
+        }
+
+        CounterCheckpoint checkpoint;
+        try {
+            checkpoint = CounterCheckpoint.open(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        counterCheckpoint = checkpoint;
+        collectorMap.values().forEach(collector -> collector.setCheckpoint(checkpoint));
+        backgroundExecutor().scheduleAtFixedRate(this::checkpointCounters, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    private void checkpointCounters() {
+        CounterCheckpoint checkpoint = counterCheckpoint;
+        if (checkpoint == null) {
+            return;
+        }
+
+        List<Collector.MetricFamilySamples> samples = new ArrayList<>();
+        for (MultiTagMicrometerCollector collector : collectorMap.values()) {
+            try {
+                samples.addAll(collector.collectCumulative());
+            } catch (RuntimeException e) {
+                logger.warn("Failed to collect " + collector.getConventionName() + " for the counter checkpoint", e);
+            }
+        }
+
+        try {
+            checkpoint.write(samples);
+        } catch (IOException e) {
+            logger.warn("Failed to write the counter checkpoint", e);
+        }
+    }
+
+    /**
+     * Run as a worker of a multi-process setup: every {@code interval}, and once more when the registry is
+     * closed, the samples of all meters are written to this process' own memory-mapped segment in
+     * {@code directory}. A single exposing process serves them with {@link #exposeSegments(Path, GaugeMergeMode)}.
+     *
+     * @param directory directory shared by the workers and the exposing process
+     * @param interval how often to write the segment
+     * @return This registry
+     */
+    public synchronized MultiTagPrometheusMeterRegistry writeToSegment(Path directory, Duration interval) {
+        if (segmentWriter != null) {
+            throw new IllegalStateException("Meters are already being written to a segment");
+        }
+
+        try {
+            segmentWriter = new SampleSegment.Writer(directory.resolve(MultiProcessCollector.segmentName(ProcessHandle.current().pid())));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        backgroundExecutor().scheduleAtFixedRate(this::writeSegment, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    private void writeSegment() {
+        SampleSegment.Writer writer = segmentWriter;
+        if (writer == null) {
+            return;
+        }
+
+        List<Collector.MetricFamilySamples> samples = collectUnaggregated("the segment");
+        synchronized (writer) {
+            try {
+                writer.write(samples);
+            } catch (IOException e) {
+                logger.warn("Failed to write the segment", e);
+            }
+        }
+    }
+
+    /**
+     * Serve the segments that worker processes write to {@code directory} with
+     * {@link #writeToSegment(Path, Duration)}, merged with each other at scrape time. Counters, counts, sums and
+     * buckets are summed across workers and gauges are combined according to {@code gaugeMergeMode}. Segments
+     * of workers that exited are still served, so the directory should be cleared when the host restarts.
+     * <p>
+     * The meters of this registry are merged with the workers' as if this process were one more worker, so they
+     * are no longer exposed on their own. The merged families are exposed as a whole, so exposing segments can't
+     * be combined with {@link #aggregate(String, String...) aggregation}, a
+     * {@link #scrapeDeadline(Duration, int, Duration) scrape deadline} or
+     * {@link #scrape(Writer, String, int, int) sharded scrapes}.
+     *
+     * @param directory directory shared by the workers and the exposing process
+     * @param gaugeMergeMode how gauges of different workers are combined
+     * @return This registry
+     * @throws IllegalStateException if segments are already exposed, or if the registry aggregates metrics or
+     *                               bounds its scrapes
+     */
+    public synchronized MultiTagPrometheusMeterRegistry exposeSegments(Path directory, GaugeMergeMode gaugeMergeMode) {
+        if (exposingSegments) {
+            throw new IllegalStateException("Segments are already exposed");
+        }
+        if (!aggregations.isEmpty()) {
+            throw new IllegalStateException("A registry that aggregates " + aggregations.keySet() + " can't expose segments");
+        }
+        if (scrapeBudget != null) {
+            throw new IllegalStateException("A registry with a scrape deadline can't expose segments");
+        }
+
+        exposingSegments = true;
+        for (String name : collectorMap.keySet()) {
+            collectorMap.computeIfPresent(name, (n, collector) -> {
+                registry.unregister(collector);
+                return collector;
+            });
+        }
+
+        new MultiProcessCollector(directory, gaugeMergeMode, () -> collectUnaggregated("the merged segments")).register(registry);
+        return this;
+    }
+
+    private List<Collector.MetricFamilySamples> collectUnaggregated(String purpose) {
+        List<Collector.MetricFamilySamples> samples = new ArrayList<>();
+        for (MultiTagMicrometerCollector collector : collectorMap.values()) {
+            try {
+                samples.addAll(collector.collectUnaggregated());
+            } catch (RuntimeException e) {
+                logger.warn("Failed to collect " + collector.getConventionName() + " for " + purpose, e);
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Store counters registered after this call in columnar storage: each counter gets an integer slot, its
+     * value lives in striped primitive arrays and its tags are kept as dictionary ids. This takes a fraction
+     * of the memory of a regular counter and turns scraping counters into a sequential pass over arrays.
+     * Gauges keep reading their value from the object they observe, so they are not affected.
+     * <p>
+     * The slots and dictionary entries of removed counters are reused shortly after removal. A removed counter
+     * that is still held stops counting and reports {@code 0}.
+     *
+     * @param offHeap whether the values are kept in direct memory instead of on the heap
+     * @return This registry
+     */
+    public synchronized MultiTagPrometheusMeterRegistry storeCountersInColumns(boolean offHeap) {
+        if (columnarDictionary == null) {
+            columnarDictionary = new LabelDictionary();
+        }
+        columnarOffHeap = offHeap;
+        return this;
+    }
+
+    /**
+     * Compute the client-side percentiles of timers and distribution summaries registered after this call with
+     * a mergeable, relative-error sketch instead of Micrometer's rotating histograms. The sketch takes a few
+     * hundred bytes for a typical latency distribution and records without locking. Its percentiles cover the
+     * whole lifetime of the meter. Meters with service level objectives keep the default implementation, and so
+     * do meters that publish a percentile histogram unless the sketch exposes its buckets in their place.
+     * <p>
+     * With {@code exposeBuckets}, the sketch buckets of meters with a finite maximum expected value are exposed
+     * as histogram buckets. This covers timers, whose maximum defaults to 30s, but only the distribution summaries
+     * that set one. Their boundaries only depend on {@code relativeAccuracy}, so quantiles can be aggregated
+     * correctly across instances with {@code histogram_quantile}. The exposed buckets cover each meter's minimum
+     * to maximum expected value whatever was recorded, so every instance exposes the same series. That is
+     * {@code ln(max / min) / (2 * relativeAccuracy)} buckets per series, so the default 1ms to 30s of a timer
+     * would need about 515 at 1%. Layouts are coarsened to at most {@value PercentileSketch#MAX_EXPOSED_BUCKETS}
+     * finite buckets per series. Use {@link #percentileSketch(double, boolean, double)} to choose coarser
+     * buckets than the percentiles use.
+     *
+     * @param relativeAccuracy the relative error of the percentiles, e.g. {@code 0.01} for 1%
+     * @param exposeBuckets whether to expose the sketch buckets of sketch-backed meters with a finite maximum expected value
+     * @return This registry
+     */
+    public MultiTagPrometheusMeterRegistry percentileSketch(double relativeAccuracy, boolean exposeBuckets) {
+        return percentileSketch(relativeAccuracy, exposeBuckets, relativeAccuracy);
+    }
+
+    /**
+     * Like {@link #percentileSketch(double, boolean)}, with exposed buckets of their own relative accuracy. Each
+     * exposed bucket spans a whole number of sketch buckets, so the accuracy is rounded to the nearest multiple
+     * of the sketch's. For instance, 10% exposes about 46 buckets for a timer expecting 1ms to 10s, while the
+     * client-side percentiles keep {@code relativeAccuracy}.
+     *
+     * @param relativeAccuracy the relative error of the percentiles, e.g. {@code 0.01} for 1%
+     * @param exposeBuckets whether to expose the sketch buckets of sketch-backed meters with a finite maximum expected value
+     * @param bucketRelativeAccuracy the relative error of the exposed buckets, at least {@code relativeAccuracy}
+     * @return This registry
+     */
+    public synchronized MultiTagPrometheusMeterRegistry percentileSketch(double relativeAccuracy, boolean exposeBuckets,
+                                                                         double bucketRelativeAccuracy) {
+        if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+            throw new IllegalArgumentException("relativeAccuracy must be in (0, 1): " + relativeAccuracy);
+        }
+        if (!(bucketRelativeAccuracy >= relativeAccuracy && bucketRelativeAccuracy < 1)) {
+            throw new IllegalArgumentException("bucketRelativeAccuracy must be in [relativeAccuracy, 1): " + bucketRelativeAccuracy);
+        }
+        sketchRelativeAccuracy = relativeAccuracy;
+        sketchBucketRelativeAccuracy = bucketRelativeAccuracy;
+        sketchBuckets = exposeBuckets;
+        return this;
+    }
+
+    private synchronized ScheduledExecutorService backgroundExecutor() {
+        if (backgroundExecutor == null) {
+            backgroundExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("multi-tag-prometheus-background"));
+        }
+        return backgroundExecutor;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (backgroundExecutor != null) {
+                backgroundExecutor.shutdown();
+            }
+            if (snapshotRotator != null) {
+                snapshotRotator.close();
+            }
+            if (counterCheckpoint != null) {
+                checkpointCounters();
+                try {
+                    counterCheckpoint.close();
+                } catch (IOException e) {
+                    logger.warn("Failed to close the counter checkpoint", e);
+                }
+                counterCheckpoint = null;
+            }
+            if (segmentWriter != null) {
+                writeSegment();
+                try {
+                    segmentWriter.close();
+                } catch (IOException e) {
+                    logger.warn("Failed to close the segment", e);
+                }
+                segmentWriter = null;
+            }
+        }
+
+        super.close();
+    }
+
     /**
      * For use with {@link io.micrometer.core.instrument.MeterRegistry.Config#onMeterRegistrationFailed(BiConsumer)
      * MeterRegistry.Config#onMeterRegistrationFailed(BiConsumer)} when you want meters with the same name but different
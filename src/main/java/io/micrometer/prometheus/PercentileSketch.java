@@ -0,0 +1,240 @@
+/**
+ * Copyright 2017 VMware, Inc.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.micrometer.prometheus;
+
+import io.micrometer.core.instrument.distribution.CountAtBucket;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A DDSketch-style quantile sketch with a relative error guarantee. A positive value {@code v} is counted in
+ * bucket {@code ceil(log(v) / log(gamma))} with {@code gamma = (1 + a) / (1 - a)}, so every bucket spans the
+ * same relative range and any value reported back from it is within the relative accuracy {@code a}.
+ * <p>
+ * Bucket boundaries only depend on the relative accuracy, so sketches with the same accuracy can be merged by
+ * adding up counts, including on the Prometheus side when the buckets are exposed. Boundaries are computed with
+ * {@link StrictMath} so that every JVM formats the same {@code le} values. Counts live in small pages
+ * that are allocated on first use, which keeps a sketch of a narrow distribution compact, and recording is a
+ * lock-free increment.
+ */
+final class PercentileSketch {
+    private static final int PAGE_SIZE = 64;
+    private static final double MIN_INDEXABLE = 1e-9;
+    private static final double MAX_INDEXABLE = 1e18;
+
+    /**
+     * The most finite buckets exposed for one series, beyond which the exposed buckets are coarsened.
+     */
+    static final int MAX_EXPOSED_BUCKETS = 128;
+
+    private final double gamma;
+    private final double logGamma;
+    private final int minIndex;
+    private final int maxIndex;
+    private final AtomicReferenceArray<AtomicLongArray> pages;
+    private final LongAdder zeroCount = new LongAdder();
+
+    PercentileSketch(double relativeAccuracy) {
+        if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+            throw new IllegalArgumentException("relativeAccuracy must be in (0, 1): " + relativeAccuracy);
+        }
+
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = StrictMath.log(gamma);
+        this.minIndex = index(MIN_INDEXABLE);
+        this.maxIndex = index(MAX_INDEXABLE);
+        this.pages = new AtomicReferenceArray<>((maxIndex - minIndex) / PAGE_SIZE + 1);
+    }
+
+    void record(double value) {
+        // values outside of the indexable range are collapsed into the first or last bucket
+        if (!(value >= MIN_INDEXABLE)) {
+            if (value > 0) {
+                increment(minIndex);
+            } else {
+                zeroCount.increment();
+            }
+            return;
+        }
+        increment(Math.min(index(value), maxIndex));
+    }
+
+    /**
+     * @param percentiles percentiles in {@code [0, 1]}
+     * @return The estimated value at each percentile, in ascending order of percentile.
+     */
+    ValueAtPercentile[] percentiles(double[] percentiles) {
+        double[] sorted = percentiles.clone();
+        Arrays.sort(sorted);
+        ValueAtPercentile[] values = new ValueAtPercentile[sorted.length];
+
+        long total = zeroCount.sum();
+        for (int p = 0; p < pages.length(); p++) {
+            AtomicLongArray page = pages.get(p);
+            if (page != null) {
+                for (int i = 0; i < PAGE_SIZE; i++) {
+                    total += page.get(i);
+                }
+            }
+        }
+
+        int next = 0;
+        long cumulative = zeroCount.sum();
+        double value = 0;
+        while (next < sorted.length && cumulative > rank(sorted[next], total)) {
+            values[next] = new ValueAtPercentile(sorted[next], 0);
+            next++;
+        }
+
+        for (int p = 0; p < pages.length() && next < sorted.length; p++) {
+            AtomicLongArray page = pages.get(p);
+            if (page == null) {
+                continue;
+            }
+            for (int i = 0; i < PAGE_SIZE && next < sorted.length; i++) {
+                long count = page.get(i);
+                if (count == 0) {
+                    continue;
+                }
+                cumulative += count;
+                value = estimate(minIndex + p * PAGE_SIZE + i);
+                while (next < sorted.length && cumulative > rank(sorted[next], total)) {
+                    values[next] = new ValueAtPercentile(sorted[next], value);
+                    next++;
+                }
+            }
+        }
+
+        // only reached when recordings raced with the first pass
+        while (next < sorted.length) {
+            values[next] = new ValueAtPercentile(sorted[next], value);
+            next++;
+        }
+        return values;
+    }
+
+    /**
+     * The buckets to expose for values between {@code minValue} and {@code maxValue}. They only depend on the
+     * arguments and the relative accuracy, never on what was recorded, so every instance configured alike
+     * exposes the same series. Every exposed bucket spans a whole number of sketch buckets, as close to
+     * {@code bucketRelativeAccuracy} as possible, and boundaries sit on a grid shared by every range. A range
+     * that would need more than {@link #MAX_EXPOSED_BUCKETS} buckets doubles their span until it fits.
+     *
+     * @param bucketRelativeAccuracy the relative accuracy of the exposed buckets, at least the sketch's
+     * @return The sketch bucket indices whose upper boundaries are exposed, in ascending order.
+     */
+    int[] bucketLayout(double minValue, double maxValue, double bucketRelativeAccuracy) {
+        double bucketGamma = (1 + bucketRelativeAccuracy) / (1 - bucketRelativeAccuracy);
+        int stride = Math.max(1, (int) Math.round(StrictMath.log(bucketGamma) / logGamma));
+
+        int first;
+        int last;
+        while (true) {
+            first = Math.floorDiv(layoutIndex(minValue), stride) * stride;
+            last = Math.max(-Math.floorDiv(-layoutIndex(maxValue), stride) * stride, first);
+            if ((last - first) / stride + 1 <= MAX_EXPOSED_BUCKETS) {
+                break;
+            }
+            // doubling keeps the coarser boundaries on the grid of the finer ones
+            stride *= 2;
+        }
+
+        int[] layout = new int[(last - first) / stride + 1];
+        for (int i = 0; i < layout.length; i++) {
+            layout[i] = first + i * stride;
+        }
+        return layout;
+    }
+
+    /**
+     * @return The layout of the buckets exposed for a meter, from its minimum to its maximum expected value.
+     */
+    int[] bucketLayout(DistributionStatisticConfig distributionStatisticConfig, double bucketRelativeAccuracy) {
+        Double minValue = distributionStatisticConfig.getMinimumExpectedValueAsDouble();
+        Double maxValue = distributionStatisticConfig.getMaximumExpectedValueAsDouble();
+        return bucketLayout(minValue == null ? MIN_INDEXABLE : minValue, maxValue == null ? MAX_INDEXABLE : maxValue,
+                bucketRelativeAccuracy);
+    }
+
+    /**
+     * @param layout exposed sketch bucket indices, as returned by {@link #bucketLayout(double, double, double)}
+     * @return The cumulative count at the upper boundary of every exposed bucket. Values below the first
+     * boundary, zero included, are counted in the first bucket and values above the last only in {@code +Inf}.
+     */
+    CountAtBucket[] cumulativeBuckets(int[] layout) {
+        CountAtBucket[] buckets = new CountAtBucket[layout.length];
+        long cumulative = zeroCount.sum();
+        int next = minIndex;
+
+        for (int b = 0; b < layout.length; b++) {
+            int until = Math.min(layout[b], maxIndex);
+            while (next <= until) {
+                AtomicLongArray page = pages.get((next - minIndex) / PAGE_SIZE);
+                if (page == null) {
+                    // skip to the first index of the next page
+                    next += PAGE_SIZE - (next - minIndex) % PAGE_SIZE;
+                    continue;
+                }
+                cumulative += page.get((next - minIndex) % PAGE_SIZE);
+                next++;
+            }
+            buckets[b] = new CountAtBucket(upperBound(layout[b]), cumulative);
+        }
+        return buckets;
+    }
+
+    private void increment(int index) {
+        int offset = index - minIndex;
+        AtomicLongArray page = pages.get(offset / PAGE_SIZE);
+        if (page == null) {
+            pages.compareAndSet(offset / PAGE_SIZE, null, new AtomicLongArray(PAGE_SIZE));
+            page = pages.get(offset / PAGE_SIZE);
+        }
+        page.incrementAndGet(offset % PAGE_SIZE);
+    }
+
+    private int index(double value) {
+        return (int) Math.ceil(Math.log(value) / logGamma);
+    }
+
+    /**
+     * Like {@link #index(double)}, but identical on every JVM, for what ends up in the exposed layout.
+     */
+    private int layoutIndex(double value) {
+        double clamped = Math.min(Math.max(value, MIN_INDEXABLE), MAX_INDEXABLE);
+        return (int) Math.ceil(StrictMath.log(clamped) / logGamma);
+    }
+
+    private double upperBound(int index) {
+        return StrictMath.pow(gamma, index);
+    }
+
+    /**
+     * @return The value with the smallest relative error to everything in the bucket.
+     */
+    private double estimate(int index) {
+        return 2 * upperBound(index) / (gamma + 1);
+    }
+
+    private static double rank(double percentile, long total) {
+        return percentile * (total - 1);
+    }
+}
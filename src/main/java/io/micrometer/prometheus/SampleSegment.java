@@ -0,0 +1,321 @@
+/**
+ * Copyright 2017 VMware, Inc.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.micrometer.prometheus;
+
+import io.micrometer.core.util.internal.logging.InternalLogger;
+import io.micrometer.core.util.internal.logging.InternalLoggerFactory;
+import io.prometheus.client.Collector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A memory-mapped file holding a flat list of samples in a compact binary layout:
+ * <pre>
+ * header: int magic, int version, slot 0, slot 1
+ * slot:   long sequence, long offset, int length, int entry count, long CRC32 of the data
+ * entry:  UTF family name, byte type code, UTF sample name, short label count, (UTF key, UTF value)*, double value
+ * </pre>
+ * The type code carries a flag marking the {@code _max} gauges of timers and distribution summaries.
+ * Every write goes to the slot that doesn't hold the latest data, at an offset that doesn't overlap the other
+ * slot's data, and only publishes its sequence once the data and the checksum are in place. A reader takes the
+ * slot with the highest sequence and falls back to the other one if the data doesn't match its checksum, so a
+ * write torn by a crash leaves the previous one readable. Readers in another process detect a write racing with
+ * their copy through a changed sequence and retry. Neither side locks.
+ */
+final class SampleSegment {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(SampleSegment.class);
+
+    private static final int MAGIC = 0x4d545053;
+    private static final int VERSION = 2;
+    private static final int SLOT_OFFSET = 8;
+    private static final int SLOT_SIZE = 32;
+    private static final int HEADER_SIZE = SLOT_OFFSET + 2 * SLOT_SIZE;
+    private static final int READ_ATTEMPTS = 16;
+    private static final int MAXIMUM = 0x80;
+
+    private SampleSegment() {
+    }
+
+    static final class Entry {
+        final String familyName;
+        final Collector.Type type;
+        final String sampleName;
+        final List<String> labelNames;
+        final List<String> labelValues;
+        final double value;
+
+        /**
+         * Whether this is the {@code _max} gauge of a timer or distribution summary.
+         */
+        final boolean maximum;
+
+        Entry(String familyName, Collector.Type type, String sampleName, List<String> labelNames, List<String> labelValues,
+              double value, boolean maximum) {
+            this.familyName = familyName;
+            this.type = type;
+            this.sampleName = sampleName;
+            this.labelNames = labelNames;
+            this.labelValues = labelValues;
+            this.value = value;
+            this.maximum = maximum;
+        }
+    }
+
+    /**
+     * @return The entries of the latest complete write, or an empty list if the segment doesn't exist, is
+     * malformed, or keeps being rewritten for longer than a few read attempts.
+     */
+    static List<Entry> read(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return Collections.emptyList();
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                return Collections.emptyList();
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                logger.warn("Ignoring segment " + path + " with an unknown format");
+                return Collections.emptyList();
+            }
+
+            attempts:
+            for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+                long sequence0 = buffer.getLong(slot(0));
+                long sequence1 = buffer.getLong(slot(1));
+                int latest = sequence0 >= sequence1 ? 0 : 1;
+
+                for (int slot : new int[]{latest, 1 - latest}) {
+                    int slotOffset = slot(slot);
+                    long sequence = buffer.getLong(slotOffset);
+                    VarHandle.acquireFence();
+                    if (sequence <= 0) {
+                        // never written, or a write in progress
+                        continue;
+                    }
+
+                    long offset = buffer.getLong(slotOffset + 8);
+                    int length = buffer.getInt(slotOffset + 16);
+                    int count = buffer.getInt(slotOffset + 20);
+                    long checksum = buffer.getLong(slotOffset + 24);
+                    if (offset < HEADER_SIZE || length < 0 || offset + length > size) {
+                        continue;
+                    }
+
+                    byte[] data = new byte[length];
+                    buffer.duplicate().position((int) offset).get(data);
+                    VarHandle.acquireFence();
+                    if (buffer.getLong(slotOffset) != sequence) {
+                        Thread.onSpinWait();
+                        continue attempts;
+                    }
+
+                    if (checksum(data) != checksum) {
+                        logger.warn("Ignoring a torn or corrupt write in segment " + path);
+                        continue;
+                    }
+                    try {
+                        return decode(data, count);
+                    } catch (IOException | RuntimeException e) {
+                        logger.warn("Ignoring a malformed write in segment " + path, e);
+                    }
+                }
+                return Collections.emptyList();
+            }
+            return Collections.emptyList();
+        }
+    }
+
+    private static int slot(int slot) {
+        return SLOT_OFFSET + slot * SLOT_SIZE;
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    /**
+     * Codes that don't depend on the order of {@link Collector.Type}, which changes between client versions.
+     */
+    private static byte typeCode(Collector.Type type) {
+        switch (type) {
+            case COUNTER:
+                return 1;
+            case GAUGE:
+                return 2;
+            case SUMMARY:
+                return 3;
+            case HISTOGRAM:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    private static Collector.Type type(int code) {
+        switch (code & ~MAXIMUM) {
+            case 1:
+                return Collector.Type.COUNTER;
+            case 2:
+                return Collector.Type.GAUGE;
+            case 3:
+                return Collector.Type.SUMMARY;
+            case 4:
+                return Collector.Type.HISTOGRAM;
+            default:
+                return Collector.Type.UNKNOWN;
+        }
+    }
+
+    private static List<Entry> decode(byte[] data, int count) throws IOException {
+        List<Entry> entries = new ArrayList<>(Math.min(count, data.length));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        for (int i = 0; i < count; i++) {
+            String familyName = in.readUTF();
+            int typeCode = in.readUnsignedByte();
+            String sampleName = in.readUTF();
+            int labels = in.readUnsignedShort();
+            List<String> labelNames = new ArrayList<>(labels);
+            List<String> labelValues = new ArrayList<>(labels);
+            for (int j = 0; j < labels; j++) {
+                labelNames.add(in.readUTF());
+                labelValues.add(in.readUTF());
+            }
+            entries.add(new Entry(familyName, type(typeCode), sampleName, labelNames, labelValues, in.readDouble(),
+                    (typeCode & MAXIMUM) != 0));
+        }
+        return entries;
+    }
+
+    /**
+     * Rewrites a segment, alternating between its two slots. Not thread-safe, a segment has a single writer.
+     */
+    static final class Writer implements Closeable {
+        private final FileChannel channel;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private MappedByteBuffer buffer;
+
+        private final long[] sequences = new long[2];
+        private final long[] offsets = new long[2];
+        private final int[] lengths = new int[2];
+
+        Writer(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), HEADER_SIZE));
+
+            if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION) {
+                // continue where a previous writer left off, so that its latest write stays readable until replaced
+                for (int slot = 0; slot < 2; slot++) {
+                    long offset = buffer.getLong(slot(slot) + 8);
+                    int length = buffer.getInt(slot(slot) + 16);
+                    if (offset >= HEADER_SIZE && length >= 0 && offset + length <= buffer.capacity()) {
+                        sequences[slot] = Math.max(buffer.getLong(slot(slot)), 0);
+                        offsets[slot] = offset;
+                        lengths[slot] = length;
+                    }
+                }
+            } else {
+                for (int i = 0; i < HEADER_SIZE; i += Long.BYTES) {
+                    buffer.putLong(i, 0);
+                }
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+            }
+        }
+
+        void write(List<Collector.MetricFamilySamples> families) throws IOException {
+            bytes.reset();
+            DataOutputStream out = new DataOutputStream(bytes);
+            int count = 0;
+            for (Collector.MetricFamilySamples family : families) {
+                for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                    out.writeUTF(family.name);
+                    out.writeByte(typeCode(family.type) | (family instanceof MultiTagMicrometerCollector.MaximumFamilySamples ? MAXIMUM : 0));
+                    out.writeUTF(sample.name);
+                    out.writeShort(sample.labelNames.size());
+                    for (int i = 0; i < sample.labelNames.size(); i++) {
+                        out.writeUTF(sample.labelNames.get(i));
+                        out.writeUTF(sample.labelValues.get(i));
+                    }
+                    out.writeDouble(sample.value);
+                    count++;
+                }
+            }
+            out.flush();
+            byte[] data = bytes.toByteArray();
+
+            int target = sequences[0] <= sequences[1] ? 0 : 1;
+            int other = 1 - target;
+
+            // the latest write stays untouched, the new one goes in front of it if it fits and after it otherwise
+            long offset = HEADER_SIZE;
+            if (sequences[other] > 0 && HEADER_SIZE + data.length > offsets[other]) {
+                offset = offsets[other] + lengths[other];
+            }
+            if (buffer.capacity() < offset + data.length) {
+                // grow with some headroom so that a slowly growing segment isn't remapped on every write
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, offset + data.length + data.length / 2);
+            }
+
+            int slotOffset = slot(target);
+            buffer.putLong(slotOffset, 0);
+            VarHandle.fullFence();
+
+            buffer.duplicate().position((int) offset).put(data);
+            buffer.putLong(slotOffset + 8, offset);
+            buffer.putInt(slotOffset + 16, data.length);
+            buffer.putInt(slotOffset + 20, count);
+            buffer.putLong(slotOffset + 24, checksum(data));
+
+            VarHandle.releaseFence();
+            long sequence = Math.max(sequences[0], sequences[1]) + 1;
+            buffer.putLong(slotOffset, sequence);
+
+            sequences[target] = sequence;
+            offsets[target] = offset;
+            lengths[target] = data.length;
+        }
+
+        void force() {
+            buffer.force();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2017 VMware, Inc.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.micrometer.prometheus;
+
+import java.time.Duration;
+
+/**
+ * Time budget a single {@link MultiTagMicrometerCollector} may spend per scrape, together with the
+ * circuit breaker settings applied to collectors that keep exceeding it.
+ */
+final class ScrapeBudget {
+    final long budgetNanos;
+    final int maxConsecutiveOverruns;
+    final long coolDownNanos;
+
+    ScrapeBudget(Duration budget, int maxConsecutiveOverruns, Duration coolDown) {
+        if (budget.isNegative() || budget.isZero()) {
+            throw new IllegalArgumentException("budget must be positive: " + budget);
+        }
+        if (maxConsecutiveOverruns < 1) {
+            throw new IllegalArgumentException("maxConsecutiveOverruns must be at least 1: " + maxConsecutiveOverruns);
+        }
+        if (coolDown.isNegative()) {
+            throw new IllegalArgumentException("coolDown must not be negative: " + coolDown);
+        }
+
+        this.budgetNanos = budget.toNanos();
+        this.maxConsecutiveOverruns = maxConsecutiveOverruns;
+        this.coolDownNanos = coolDown.toNanos();
+    }
+}
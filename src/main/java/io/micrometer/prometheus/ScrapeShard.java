@@ -0,0 +1,121 @@
+/**
+ * Copyright 2017 VMware, Inc.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.micrometer.prometheus;
+
+import io.micrometer.core.lang.Nullable;
+import io.prometheus.client.Collector;
+
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * One of {@code count} disjoint slices of a scrape. A series belongs to the shard picked by a hash of its
+ * convention name and labels that only depends on their contents, so that scrapers running in different
+ * processes agree on the split. The shard of the scrape in progress is bound to the scraping thread.
+ */
+final class ScrapeShard {
+    private static final ThreadLocal<ScrapeShard> CURRENT = new ThreadLocal<>();
+
+    final int index;
+    final int count;
+
+    // names of the families produced by multi-tag collectors during this scrape, everything else only goes to shard 0
+    private final Set<String> sharded = new HashSet<>();
+
+    ScrapeShard(int index, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("shard count must be at least 1: " + count);
+        }
+        if (index < 0 || index >= count) {
+            throw new IllegalArgumentException("shard index must be in [0, " + count + "): " + index);
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    @Nullable
+    static ScrapeShard current() {
+        return CURRENT.get();
+    }
+
+    void bind() {
+        CURRENT.set(this);
+    }
+
+    void unbind() {
+        CURRENT.remove();
+    }
+
+    boolean owns(String conventionName, List<String> labelNames, List<String> labelValues) {
+        // String and List hash codes are fully specified, so this is stable across JVMs
+        int hash = conventionName.hashCode();
+        hash = 31 * hash + labelNames.hashCode();
+        hash = 31 * hash + labelValues.hashCode();
+
+        // murmur3 finalizer, spreads similar label values over all shards
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+
+        return Math.floorMod(hash, count) == index;
+    }
+
+    List<Collector.MetricFamilySamples> markSharded(List<Collector.MetricFamilySamples> families) {
+        families.forEach(family -> sharded.add(family.name));
+        return families;
+    }
+
+    /**
+     * Leaves out the families of collectors that don't take part in sharding, except on shard 0, so that
+     * they are scraped exactly once.
+     */
+    Enumeration<Collector.MetricFamilySamples> filter(Enumeration<Collector.MetricFamilySamples> families) {
+        if (index == 0) {
+            return families;
+        }
+
+        return new Enumeration<Collector.MetricFamilySamples>() {
+            @Nullable
+            private Collector.MetricFamilySamples next;
+
+            @Override
+            public boolean hasMoreElements() {
+                while (next == null && families.hasMoreElements()) {
+                    Collector.MetricFamilySamples candidate = families.nextElement();
+                    if (sharded.contains(candidate.name)) {
+                        next = candidate;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Collector.MetricFamilySamples nextElement() {
+                if (!hasMoreElements()) {
+                    throw new NoSuchElementException();
+                }
+                Collector.MetricFamilySamples current = next;
+                next = null;
+                return current;
+            }
+        };
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2017 VMware, Inc.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.micrometer.prometheus;
+
+import io.micrometer.core.lang.Nullable;
+import io.prometheus.client.Collector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+
+/**
+ * Reports which {@link MultiTagMicrometerCollector collectors} were cut short by their {@link ScrapeBudget}.
+ * Each sample carries the number of children left out of the most recent collection, labelled with the
+ * collector name and the reason they were skipped. Collectors that emitted everything are not reported.
+ * <p>
+ * The {@link io.prometheus.client.CollectorRegistry} collects in no particular order, so a scrape of the registry alone may report
+ * the outcome of the previous scrape. {@link #emitLast(Enumeration)} moves this collector to the end of a scrape,
+ * after every other collector ran.
+ */
+class ScrapeStatusCollector extends Collector implements Collector.Describable {
+    static final String NAME = "micrometer_scrape_skipped_children";
+
+    private static final String HELP = "Children skipped by the last collection of a collector that exceeded its scrape budget";
+    private static final List<String> LABEL_NAMES = Arrays.asList("collector", "reason");
+
+    private final Collection<MultiTagMicrometerCollector> collectors;
+
+    ScrapeStatusCollector(Collection<MultiTagMicrometerCollector> collectors) {
+        this.collectors = collectors;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+        for (MultiTagMicrometerCollector collector : collectors) {
+            MultiTagMicrometerCollector.ScrapeOutcome outcome = collector.getLastOutcome();
+            if (outcome.status != MultiTagMicrometerCollector.ScrapeStatus.OK) {
+                samples.add(new MetricFamilySamples.Sample(NAME, LABEL_NAMES,
+                        Arrays.asList(collector.getConventionName(), outcome.status.name().toLowerCase(Locale.ROOT)),
+                        outcome.skippedChildren));
+            }
+        }
+        return Collections.singletonList(new MetricFamilySamples(NAME, Type.GAUGE, HELP, samples));
+    }
+
+    /**
+     * @return The families, with the one of this collector taken again once every other family was collected.
+     */
+    Enumeration<MetricFamilySamples> emitLast(Enumeration<MetricFamilySamples> families) {
+        return new Enumeration<MetricFamilySamples>() {
+            @Nullable
+            private MetricFamilySamples next;
+            private boolean deferred;
+
+            @Override
+            public boolean hasMoreElements() {
+                while (next == null && families.hasMoreElements()) {
+                    MetricFamilySamples candidate = families.nextElement();
+                    if (candidate.name.equals(NAME)) {
+                        deferred = true;
+                    } else {
+                        next = candidate;
+                    }
+                }
+                if (next == null && deferred) {
+                    deferred = false;
+                    next = collect().get(0);
+                }
+                return next != null;
+            }
+
+            @Override
+            public MetricFamilySamples nextElement() {
+                if (!hasMoreElements()) {
+                    throw new NoSuchElementException();
+                }
+                MetricFamilySamples current = next;
+                next = null;
+                return current;
+            }
+        };
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+        return Collections.singletonList(new MetricFamilySamples(NAME, Type.GAUGE, HELP, Collections.emptyList()));
+    }
+}
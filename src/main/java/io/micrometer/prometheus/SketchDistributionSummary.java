@@ -0,0 +1,96 @@
+/**
+ * Copyright 2017 VMware, Inc.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.micrometer.prometheus;
+
+import io.micrometer.core.instrument.AbstractDistributionSummary;
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.distribution.CountAtBucket;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.TimeWindowMax;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.lang.Nullable;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution summary whose percentiles come from a {@link PercentileSketch} instead of Micrometer's rotating
+ * histograms. The sketch is cumulative over the lifetime of the summary.
+ */
+final class SketchDistributionSummary extends AbstractDistributionSummary {
+    private final LongAdder count = new LongAdder();
+    private final DoubleAdder amount = new DoubleAdder();
+    private final TimeWindowMax max;
+    private final PercentileSketch sketch;
+    private final double[] percentiles;
+    @Nullable
+    private final int[] bucketLayout;
+
+    /**
+     * @param distributionStatisticConfig the configuration of the summary, percentiles are taken from the sketch
+     *                                    and aren't tracked by Micrometer
+     * @param bucketRelativeAccuracy      the relative accuracy of the exposed buckets
+     */
+    SketchDistributionSummary(Id id, Clock clock, DistributionStatisticConfig distributionStatisticConfig, double scale,
+                              double relativeAccuracy, double bucketRelativeAccuracy, boolean exposeBuckets) {
+        super(id, clock, MultiTagPrometheusMeterRegistry.withoutPercentiles(distributionStatisticConfig), scale, false);
+        this.max = new TimeWindowMax(clock, distributionStatisticConfig);
+        this.sketch = new PercentileSketch(relativeAccuracy);
+        this.percentiles = distributionStatisticConfig.getPercentiles();
+        this.bucketLayout = exposeBuckets ? sketch.bucketLayout(distributionStatisticConfig, bucketRelativeAccuracy) : null;
+    }
+
+    @Override
+    protected void recordNonNegative(double amount) {
+        count.increment();
+        this.amount.add(amount);
+        max.record(amount);
+        sketch.record(amount);
+    }
+
+    @Override
+    public long count() {
+        return count.sum();
+    }
+
+    @Override
+    public double totalAmount() {
+        return amount.sum();
+    }
+
+    @Override
+    public double max() {
+        return max.poll();
+    }
+
+    @Override
+    public HistogramSnapshot takeSnapshot() {
+        return new HistogramSnapshot(count(), totalAmount(), max(),
+                sketch.percentiles(percentiles), bucketLayout != null ? sketch.cumulativeBuckets(bucketLayout) : new CountAtBucket[0], null);
+    }
+
+    /**
+     * @return The configured percentiles, straight from the sketch without building a whole snapshot.
+     */
+    ValueAtPercentile[] percentileValues() {
+        return sketch.percentiles(percentiles);
+    }
+
+    CountAtBucket[] histogramCounts() {
+        return bucketLayout != null ? sketch.cumulativeBuckets(bucketLayout) : new CountAtBucket[0];
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2017 VMware, Inc.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.micrometer.prometheus;
+
+import io.micrometer.core.instrument.AbstractTimer;
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.distribution.CountAtBucket;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.TimeWindowMax;
+import io.micrometer.core.instrument.distribution.pause.PauseDetector;
+import io.micrometer.core.instrument.util.TimeUtils;
+import io.micrometer.core.lang.Nullable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timer whose percentiles come from a {@link PercentileSketch} instead of Micrometer's rotating histograms.
+ * The sketch records nanoseconds and is cumulative over the lifetime of the timer.
+ */
+final class SketchTimer extends AbstractTimer {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalTime = new LongAdder();
+    private final TimeWindowMax max;
+    private final PercentileSketch sketch;
+    private final double[] percentiles;
+    @Nullable
+    private final int[] bucketLayout;
+
+    /**
+     * @param distributionStatisticConfig the configuration of the timer, percentiles are taken from the sketch
+     *                                    and aren't tracked by Micrometer
+     * @param bucketRelativeAccuracy      the relative accuracy of the exposed buckets
+     */
+    SketchTimer(Id id, Clock clock, DistributionStatisticConfig distributionStatisticConfig, PauseDetector pauseDetector,
+                double relativeAccuracy, double bucketRelativeAccuracy, boolean exposeBuckets) {
+        super(id, clock, MultiTagPrometheusMeterRegistry.withoutPercentiles(distributionStatisticConfig), pauseDetector,
+                TimeUnit.SECONDS, false);
+        this.max = new TimeWindowMax(clock, distributionStatisticConfig);
+        this.sketch = new PercentileSketch(relativeAccuracy);
+        this.percentiles = distributionStatisticConfig.getPercentiles();
+        this.bucketLayout = exposeBuckets ? sketch.bucketLayout(distributionStatisticConfig, bucketRelativeAccuracy) : null;
+    }
+
+    @Override
+    protected void recordNonNegative(long amount, TimeUnit unit) {
+        long nanos = unit.toNanos(amount);
+        count.increment();
+        totalTime.add(nanos);
+        max.record(nanos, TimeUnit.NANOSECONDS);
+        sketch.record(nanos);
+    }
+
+    @Override
+    public long count() {
+        return count.sum();
+    }
+
+    @Override
+    public double totalTime(TimeUnit unit) {
+        return TimeUtils.nanosToUnit(totalTime.sum(), unit);
+    }
+
+    @Override
+    public double max(TimeUnit unit) {
+        return max.poll(unit);
+    }
+
+    @Override
+    public HistogramSnapshot takeSnapshot() {
+        return new HistogramSnapshot(count(), totalTime(TimeUnit.NANOSECONDS), max(TimeUnit.NANOSECONDS),
+                sketch.percentiles(percentiles), bucketLayout != null ? sketch.cumulativeBuckets(bucketLayout) : new CountAtBucket[0], null);
+    }
+}
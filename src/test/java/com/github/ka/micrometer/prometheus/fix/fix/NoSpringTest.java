@@ -1,18 +1,36 @@
 package com.github.ka.micrometer.prometheus.fix.fix;
 
 import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MockClock;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.prometheus.GaugeMergeMode;
 import io.micrometer.prometheus.PrometheusConfig;
 import io.micrometer.prometheus.MultiTagPrometheusMeterRegistry;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.exporter.common.TextFormat;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class NoSpringTest {
 
@@ -77,6 +95,438 @@ public class NoSpringTest {
         System.out.println(writer.toString());
     }
 
+    @Test
+    void slowCollectorIsTruncatedAndThenSkipped() {
+        var clock = new MockClock();
+        // monotonic time may be negative
+        clock.add(Duration.ofDays(-1));
+        var registry = new MultiTagPrometheusMeterRegistry(PrometheusConfig.DEFAULT, new CollectorRegistry(), clock)
+                .scrapeDeadline(Duration.ofSeconds(1), 2, Duration.ofMinutes(1));
+
+        registry.gauge("slow", Tags.of("k", "a"), clock, c -> {
+            c.add(Duration.ofSeconds(2));
+            return 1.0;
+        });
+        registry.gauge("slow", Tags.of("k", "b"), clock, c -> {
+            c.add(Duration.ofSeconds(2));
+            return 1.0;
+        });
+
+        // the status describes the scrape it is part of
+        String first = registry.scrape();
+        assertEquals(1, countLines(first, "slow{"));
+        assertTrue(first.contains("micrometer_scrape_skipped_children{collector=\"slow\",reason=\"truncated\",} 1.0"));
+        assertEquals(1, countLines(registry.scrape(), "slow{"));
+
+        String third = registry.scrape();
+        assertFalse(third.contains("slow{"));
+        assertTrue(third.contains("micrometer_scrape_skipped_children{collector=\"slow\",reason=\"circuit_open\",} 2.0"));
+
+        clock.add(Duration.ofMinutes(2));
+        assertEquals(1, countLines(registry.scrape(), "slow{"));
+    }
+
+    @Test
+    void backgroundSnapshotsStillExposePercentilesAndLiveCounts() {
+        var registry = newRegistry().rotateSnapshotsInBackground();
+        try {
+            var timer = Timer.builder("timer")
+                    .tags("type", "success")
+                    .publishPercentiles(0.5)
+                    .register(registry);
+            timer.record(Duration.ofMillis(100));
+
+            String first = registry.scrape();
+            assertTrue(first.contains("timer_seconds{type=\"success\",quantile=\"0.5\",}"));
+            assertTrue(first.contains("timer_seconds_count{type=\"success\",} 1.0"));
+
+            timer.record(Duration.ofMillis(100));
+            assertTrue(registry.scrape().contains("timer_seconds_count{type=\"success\",} 2.0"));
+        } finally {
+            registry.close();
+        }
+    }
+
+    @Test
+    void histogramBucketsAreCoarsenedAtScrapeTime() {
+        var registry = newRegistry().coarsenHistogram("payload", 5, 20);
+        var summary = DistributionSummary.builder("payload")
+                .serviceLevelObjectives(1, 2, 5, 10, 20)
+                .register(registry);
+        summary.record(3);
+        summary.record(50);
+
+        String output = registry.scrape();
+        assertEquals(3, countLines(output, "payload_bucket{"));
+        assertTrue(output.contains("payload_bucket{le=\"5.0\",} 1.0"));
+        assertTrue(output.contains("payload_bucket{le=\"20.0\",} 1.0"));
+        assertTrue(output.contains("payload_bucket{le=\"+Inf\",} 2.0"));
+    }
+
+    @Test
+    void histogramCoarsenedBelowLowestBucketKeepsInfBucket() {
+        var registry = newRegistry().coarsenHistogram("payload", 0.5);
+        var summary = DistributionSummary.builder("payload")
+                .serviceLevelObjectives(1, 2, 5)
+                .register(registry);
+        summary.record(3);
+
+        String output = registry.scrape();
+        assertEquals(1, countLines(output, "payload_bucket{"));
+        assertTrue(output.contains("payload_bucket{le=\"+Inf\",} 1.0"));
+    }
+
+    @Test
+    void childrenAreAggregatedOverDroppedLabels() {
+        var registry = newRegistry().aggregate("requests_total", "service");
+
+        registry.counter("requests", "service", "a", "instance", "1").increment();
+        registry.counter("requests", "service", "a", "instance", "2", "code", "500").increment(2);
+        registry.counter("requests", "service", "b", "instance", "1").increment();
+
+        String output = registry.scrape();
+        assertEquals(2, countLines(output, "requests_total{"));
+        assertTrue(output.contains("requests_total{service=\"a\",} 3.0"));
+        assertTrue(output.contains("requests_total{service=\"b\",} 1.0"));
+        assertEquals(3.0, registry.counter("requests", "service", "a", "instance", "2", "code", "500").count()
+                + registry.counter("requests", "service", "a", "instance", "1").count());
+    }
+
+    @Test
+    void truncatedAggregatesAreNotExposed() {
+        var clock = new MockClock();
+        var registry = new MultiTagPrometheusMeterRegistry(PrometheusConfig.DEFAULT, new CollectorRegistry(), clock)
+                .aggregate("slow", "service")
+                .scrapeDeadline(Duration.ofSeconds(1), 10, Duration.ofMinutes(1));
+
+        for (String instance : new String[]{"1", "2"}) {
+            registry.gauge("slow", Tags.of("service", "a", "instance", instance), clock, c -> {
+                c.add(Duration.ofSeconds(2));
+                return 1.0;
+            });
+        }
+
+        String output = registry.scrape();
+        assertEquals(0, countLines(output, "slow{"));
+        assertTrue(output.contains("micrometer_scrape_skipped_children{collector=\"slow\",reason=\"truncated\",} 2.0"));
+    }
+
+    @Test
+    void countersContinueFromCheckpointAfterRestart(@TempDir Path dir) {
+        var file = dir.resolve("counters.bin");
+
+        var before = newRegistry().persistCounters(file, Duration.ofHours(1));
+        before.counter("counter", "version", "1").increment(3);
+        DistributionSummary.builder("payload").serviceLevelObjectives(10).register(before).record(5);
+        before.close();
+
+        var after = newRegistry().persistCounters(file, Duration.ofHours(1));
+        after.counter("counter", "version", "1").increment();
+        DistributionSummary.builder("payload").serviceLevelObjectives(10).register(after).record(5);
+
+        String output = after.scrape();
+        assertTrue(output.contains("counter_total{version=\"1\",} 4.0"));
+        assertTrue(output.contains("payload_count 2.0"));
+        assertTrue(output.contains("payload_bucket{le=\"10.0\",} 2.0"));
+        after.close();
+    }
+
+    @Test
+    void damagedCheckpointsStartEmpty(@TempDir Path dir) throws IOException {
+        var file = dir.resolve("counters.bin");
+        var before = newRegistry().persistCounters(file, Duration.ofHours(1));
+        before.counter("counter", "version", "1").increment(3);
+        before.close();
+
+        byte[] bytes = Files.readAllBytes(file);
+        for (int i = bytes.length / 2; i < bytes.length; i++) {
+            bytes[i] = (byte) ~bytes[i];
+        }
+        Files.write(file, bytes);
+        var corrupt = newRegistry().persistCounters(file, Duration.ofHours(1));
+        corrupt.counter("counter", "version", "1").increment();
+        assertTrue(corrupt.scrape().contains("counter_total{version=\"1\",} 1.0"));
+        corrupt.close();
+
+        Files.write(file, Arrays.copyOf(Files.readAllBytes(file), 100));
+        var truncated = newRegistry().persistCounters(file, Duration.ofHours(1));
+        truncated.counter("counter", "version", "1").increment();
+        assertTrue(truncated.scrape().contains("counter_total{version=\"1\",} 1.0"));
+        truncated.close();
+    }
+
+    @Test
+    void untouchedRestoredCountersSurviveAnotherRestart(@TempDir Path dir) {
+        var file = dir.resolve("counters.bin");
+
+        var first = newRegistry().persistCounters(file, Duration.ofHours(1));
+        first.counter("counter", "version", "1").increment(3);
+        first.close();
+
+        // the counter isn't used at all by the second process
+        var second = newRegistry().persistCounters(file, Duration.ofHours(1));
+        second.counter("other").increment();
+        second.close();
+
+        var third = newRegistry().persistCounters(file, Duration.ofHours(1));
+        third.counter("counter", "version", "1").increment();
+        assertTrue(third.scrape().contains("counter_total{version=\"1\",} 4.0"));
+        third.close();
+    }
+
+    @Test
+    void workerSegmentsAreMergedByTheExposingProcess(@TempDir Path dir) throws IOException {
+        var ownSegment = dir.resolve(ProcessHandle.current().pid() + ".seg");
+        for (int worker = 1; worker <= 2; worker++) {
+            var registry = newRegistry().writeToSegment(dir, Duration.ofHours(1));
+            registry.counter("counter", "version", "1").increment(worker);
+            registry.gauge("queue", worker * 10);
+            registry.close();
+            Files.move(ownSegment, dir.resolve(worker + ".seg"));
+        }
+
+        var exposing = newRegistry().exposeSegments(dir, GaugeMergeMode.PID);
+        exposing.counter("counter", "version", "1").increment(4);
+
+        String output = exposing.scrape();
+        assertEquals(1, countLines(output, "# TYPE counter_total "));
+        assertTrue(output.contains("counter_total{version=\"1\",} 7.0"));
+        assertTrue(output.contains("queue{pid=\"1\",} 10.0"));
+        assertTrue(output.contains("queue{pid=\"2\",} 20.0"));
+    }
+
+    @Test
+    void onlyMicrometerMaximumsTakeTheMaximumAcrossWorkers(@TempDir Path dir) throws IOException {
+        var ownSegment = dir.resolve(ProcessHandle.current().pid() + ".seg");
+        for (int worker = 1; worker <= 2; worker++) {
+            var registry = newRegistry().writeToSegment(dir, Duration.ofHours(1));
+            registry.timer("latency").record(Duration.ofSeconds(worker));
+            registry.gauge("queue.max", worker * 10);
+            registry.close();
+            Files.move(ownSegment, dir.resolve(worker + ".seg"));
+        }
+
+        String output = newRegistry().exposeSegments(dir, GaugeMergeMode.SUM).scrape();
+        assertTrue(output.contains("latency_seconds_max 2.0"));
+        assertTrue(output.contains("latency_seconds_count 2.0"));
+        assertTrue(output.contains("queue_max 30.0"));
+    }
+
+    @Test
+    void exposingSegmentsRejectsWholeFamilyFeatures(@TempDir Path dir) {
+        assertThrows(IllegalStateException.class,
+                () -> newRegistry().aggregate("counter_total", "version").exposeSegments(dir, GaugeMergeMode.SUM));
+        assertThrows(IllegalStateException.class,
+                () -> newRegistry().scrapeDeadline(Duration.ofSeconds(1), 3, Duration.ofMinutes(1)).exposeSegments(dir, GaugeMergeMode.SUM));
+
+        var exposing = newRegistry().exposeSegments(dir, GaugeMergeMode.SUM);
+        assertThrows(IllegalStateException.class, () -> exposing.aggregate("counter_total", "version"));
+        assertThrows(IllegalStateException.class, () -> exposing.scrapeDeadline(Duration.ofSeconds(1), 3, Duration.ofMinutes(1)));
+        assertThrows(IllegalStateException.class, () -> exposing.scrape(TextFormat.CONTENT_TYPE_004, 0, 2));
+    }
+
+    @Test
+    void columnarCountersAreScrapedAndRemoved() {
+        var registry = newRegistry().storeCountersInColumns(true);
+
+        registry.counter("counter", "version", "1", "type", "success").increment();
+        registry.counter("counter", "version", "1", "type", "error", "code", "500").increment(2);
+        registry.counter("counter", "version", "1", "type", "success").increment();
+
+        assertEquals(2.0, registry.counter("counter", "version", "1", "type", "success").count());
+        String output = registry.scrape();
+        assertTrue(output.contains("counter_total{type=\"success\",version=\"1\",} 2.0"));
+        assertTrue(output.contains("counter_total{code=\"500\",type=\"error\",version=\"1\",} 2.0"));
+
+        registry.remove(registry.counter("counter", "version", "1", "type", "success"));
+        assertEquals(1, countLines(registry.scrape(), "counter_total{"));
+    }
+
+    @Test
+    void columnarCountersSpanningSeveralPagesKeepTheirValues() {
+        var registry = newRegistry().storeCountersInColumns(false);
+        for (int i = 0; i < 100; i++) {
+            registry.counter("counter", "id", Integer.toString(i)).increment(i);
+        }
+
+        String output = registry.scrape();
+        assertEquals(100, countLines(output, "counter_total{"));
+        assertEquals(99.0, sampleValue(output, "counter_total{id=\"99\",}"));
+        assertEquals(8.0, registry.counter("counter", "id", "8").count());
+    }
+
+    @Test
+    void removedColumnarCountersStopCounting() {
+        var registry = newRegistry().storeCountersInColumns(true);
+        var removed = registry.counter("counter", "id", "1");
+        removed.increment(3);
+        registry.remove(removed);
+
+        removed.increment();
+        assertEquals(0.0, removed.count());
+
+        var replacement = registry.counter("counter", "id", "1");
+        replacement.increment();
+        removed.increment();
+        assertEquals(1.0, replacement.count());
+        assertTrue(registry.scrape().contains("counter_total{id=\"1\",} 1.0"));
+    }
+
+    @Test
+    void shardsSplitSeriesWithoutOverlapAndKeepHeaders() {
+        var registry = newRegistry();
+        for (int i = 0; i < 50; i++) {
+            registry.counter("counter", "id", String.valueOf(i)).increment();
+        }
+
+        var seen = new HashSet<String>();
+        for (int shard = 0; shard < 3; shard++) {
+            String output = registry.scrape(TextFormat.CONTENT_TYPE_004, shard, 3);
+            assertTrue(output.contains("# TYPE counter_total counter"));
+            output.lines()
+                    .filter(line -> line.startsWith("counter_total{"))
+                    .forEach(line -> assertTrue(seen.add(line), "series in more than one shard: " + line));
+        }
+        assertEquals(50, seen.size());
+    }
+
+    @Test
+    void shardsAgreeOnTheTypeOfSummariesBeforeTheFirstScrape() {
+        var registry = newRegistry();
+        Timer.builder("latency").publishPercentiles(0.5).register(registry).record(Duration.ofMillis(10));
+
+        for (int shard = 0; shard < 3; shard++) {
+            String output = registry.scrape(TextFormat.CONTENT_TYPE_004, shard, 3);
+            assertTrue(output.contains("# TYPE latency_seconds summary"), output);
+        }
+    }
+
+    @Test
+    void boundCountersAreCachedPerLabelValues() {
+        var registry = newRegistry();
+        var requests = registry.counterFamily("requests").labels("method", "status");
+
+        var ok = requests.bind("GET", "200");
+        assertSame(ok, requests.bind("GET", "200"));
+        ok.increment();
+        requests.bind("GET", "200").increment();
+        requests.bind("GET", "500").increment();
+        registry.counterFamily("requests").labels("method").bind("POST").increment();
+
+        assertEquals(2.0, registry.counter("requests", "method", "GET", "status", "200").count());
+        String output = registry.scrape();
+        assertTrue(output.contains("requests_total{method=\"GET\",status=\"500\",} 1.0"));
+        assertTrue(output.contains("requests_total{method=\"POST\",} 1.0"));
+    }
+
+    @Test
+    void removedBoundCountersAreRegisteredAgainOnBind() {
+        var registry = newRegistry();
+        registry.config().meterFilter(new MeterFilter() {
+            @Override
+            public Meter.Id map(Meter.Id id) {
+                return id.withName("app." + id.getName());
+            }
+        });
+        var requests = registry.counterFamily("requests").labels("method");
+
+        var removed = requests.bind("GET");
+        removed.increment();
+        registry.remove(removed);
+
+        var rebound = requests.bind("GET");
+        assertNotSame(removed, rebound);
+        rebound.increment();
+        assertTrue(registry.scrape().contains("app_requests_total{method=\"GET\",} 1.0"));
+    }
+
+    @Test
+    void sketchPercentilesStayWithinRelativeAccuracy() {
+        var registry = newRegistry().percentileSketch(0.01, true);
+        var timer = Timer.builder("latency")
+                .publishPercentiles(0.5, 0.99)
+                .register(registry);
+        for (int i = 1; i <= 100; i++) {
+            timer.record(Duration.ofMillis(i));
+        }
+
+        String output = registry.scrape();
+        assertEquals(0.05, sampleValue(output, "latency_seconds{quantile=\"0.5\",}"), 0.05 * 0.01 + 1e-9);
+        assertEquals(0.099, sampleValue(output, "latency_seconds{quantile=\"0.99\",}"), 0.099 * 0.01 + 1e-9);
+        assertTrue(countLines(output, "latency_seconds_bucket{") > 1);
+        assertTrue(output.contains("latency_seconds_bucket{le=\"+Inf\",} 100.0"));
+        assertTrue(output.contains("latency_seconds_count 100.0"));
+    }
+
+    @Test
+    void sketchBucketsAreTheSameOnEveryInstance() {
+        var fast = newRegistry().percentileSketch(0.01, true, 0.1);
+        var slow = newRegistry().percentileSketch(0.01, true, 0.1);
+        for (var registry : new MultiTagPrometheusMeterRegistry[]{fast, slow}) {
+            Timer.builder("latency")
+                    .publishPercentiles(0.5)
+                    .minimumExpectedValue(Duration.ofMillis(1))
+                    .maximumExpectedValue(Duration.ofSeconds(10))
+                    .register(registry);
+        }
+        fast.timer("latency").record(Duration.ofMillis(10));
+        slow.timer("latency").record(Duration.ofSeconds(1));
+
+        var fastBuckets = new ArrayList<String>();
+        var slowBuckets = new ArrayList<String>();
+        fast.scrape().lines().filter(line -> line.startsWith("latency_seconds_bucket{"))
+                .forEach(line -> fastBuckets.add(line.substring(0, line.lastIndexOf(' '))));
+        slow.scrape().lines().filter(line -> line.startsWith("latency_seconds_bucket{"))
+                .forEach(line -> slowBuckets.add(line.substring(0, line.lastIndexOf(' '))));
+
+        assertEquals(fastBuckets, slowBuckets);
+        assertTrue(fastBuckets.size() < 60, "buckets: " + fastBuckets.size());
+    }
+
+    @Test
+    void percentileHistogramsKeepTheirBucketsUnlessSketchBucketsAreExposed() {
+        var outputs = new ArrayList<String>();
+        for (var registry : new MultiTagPrometheusMeterRegistry[]{newRegistry(), newRegistry().percentileSketch(0.01, false)}) {
+            Timer.builder("latency")
+                    .publishPercentiles(0.5)
+                    .publishPercentileHistogram()
+                    .register(registry)
+                    .record(Duration.ofMillis(10));
+            outputs.add(registry.scrape());
+        }
+
+        assertTrue(countLines(outputs.get(0), "latency_seconds_bucket{") > 1);
+        assertEquals(countLines(outputs.get(0), "latency_seconds_bucket{"), countLines(outputs.get(1), "latency_seconds_bucket{"));
+    }
+
+    @Test
+    void sketchBucketsNeedABoundedRange() {
+        var registry = newRegistry().percentileSketch(0.01, true);
+        DistributionSummary.builder("unbounded").publishPercentiles(0.5).register(registry).record(10);
+        DistributionSummary.builder("bounded").publishPercentiles(0.5).maximumExpectedValue(1e6).register(registry).record(10);
+        Timer.builder("latency").publishPercentiles(0.5).register(registry).record(Duration.ofMillis(10));
+
+        String output = registry.scrape();
+        assertEquals(0, countLines(output, "unbounded_bucket{"));
+        assertTrue(output.contains("unbounded{quantile=\"0.5\",}"));
+        assertTrue(countLines(output, "bounded_bucket{") > 1);
+        // the default 1ms to 30s of a timer is coarsened instead of exposing hundreds of buckets
+        long timerBuckets = countLines(output, "latency_seconds_bucket{");
+        assertTrue(timerBuckets > 1 && timerBuckets <= 129, "buckets: " + timerBuckets);
+    }
+
+    static double sampleValue(String output, String series) {
+        return output.lines()
+                .filter(line -> line.startsWith(series + " "))
+                .mapToDouble(line -> Double.parseDouble(line.substring(series.length() + 1)))
+                .findFirst()
+                .orElseThrow();
+    }
+
+    static long countLines(String output, String prefix) {
+        return output.lines().filter(line -> line.startsWith(prefix)).count();
+    }
+
     static MultiTagPrometheusMeterRegistry newRegistry() {
         var prometheusRegistry = new CollectorRegistry();
         return new MultiTagPrometheusMeterRegistry(PrometheusConfig.DEFAULT, prometheusRegistry, Clock.SYSTEM);